@@ -0,0 +1,205 @@
+package gitlet;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** Runs many commands, one per line, in a single process.
+ *
+ * `gitlet batch [FILE]` reads commands from FILE, or from standard input,
+ * and runs each through Main.run as if given on the command line. Words are
+ * separated by spaces; double quotes group words, and a backslash inside
+ * them escapes the next character. Blank lines and lines starting with #
+ * are skipped. The line `checkpoint` saves the state so far.
+ *
+ * While a batch runs, the head and the staging index are read from disk
+ * once. Head.load and Index.load return copies of the held state, and their
+ * save methods replace it, so each command sees the effects of the ones
+ * before it; branch updates are held the same way and read back through
+ * Refs. That state and the stat cache are written at checkpoints and at the
+ * end. The first failing command stops the batch,
+ * after saving what the commands before it did. A command that fails
+ * unexpectedly, with an exception other than a GitletException, may have
+ * left the held state half changed, so everything since the last
+ * checkpoint is then thrown away instead. Objects are still written
+ * as commands run, so a batch that dies in between leaves nothing worse
+ * than unreferenced objects.
+ *  @author Daniel Michles
+ */
+class Batch {
+
+    private static boolean active;
+    /* The state held for the batch, read on first use; null until then. */
+    private static Head head;
+    private static Index index;
+    private static boolean headChanged;
+    private static boolean indexChanged;
+    /* Branches moved by the batch and not yet saved: name to commit id. */
+    private static final TreeMap<String, String> REFS = new TreeMap<>();
+
+    /** Returns true iff a batch is running in this process. */
+    static boolean isActive() {
+        return active;
+    }
+
+    /** Runs the commands in FILE, or on standard input if FILE is null. */
+    static void run(String file) {
+        if (active) {
+            throw Utils.error("A batch cannot run another batch.");
+        }
+        int lineNumber = 0;
+        int status = 0;
+        active = true;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(open(file),
+                StandardCharsets.UTF_8))) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                lineNumber += 1;
+                String trimmed = line.trim();
+                if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                    continue;
+                }
+                if (trimmed.equals("checkpoint")) {
+                    save();
+                    continue;
+                }
+                List<String> args = split(trimmed);
+                if (args == null) {
+                    System.out.println("Unterminated quote.");
+                    status = -1;
+                    break;
+                }
+                status = Main.run(args.toArray(new String[0]));
+                if (status != 0) {
+                    break;
+                }
+            }
+            save();
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        } finally {
+            active = false;
+            head = null;
+            index = null;
+            headChanged = false;
+            indexChanged = false;
+            REFS.clear();
+        }
+        if (status != 0) {
+            throw Utils.error("Batch stopped at line %d.", lineNumber);
+        }
+    }
+
+    private static InputStream open(String file) throws IOException {
+        if (file == null) {
+            return System.in;
+        }
+        File source = Utils.join(Repository.CWD, file);
+        if (!source.isFile()) {
+            throw Utils.error("File %s does not exist.", file);
+        }
+        return new FileInputStream(source);
+    }
+
+    /** Returns the words of LINE, or null if it has an unterminated quote. */
+    static List<String> split(String line) {
+        List<String> words = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        boolean inWord = false;
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i += 1) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    quoted = false;
+                } else if (c == '\\' && i + 1 < line.length()) {
+                    i += 1;
+                    word.append(line.charAt(i));
+                } else {
+                    word.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+                inWord = true;
+            } else if (Character.isWhitespace(c)) {
+                if (inWord) {
+                    words.add(word.toString());
+                    word.setLength(0);
+                    inWord = false;
+                }
+            } else {
+                word.append(c);
+                inWord = true;
+            }
+        }
+        if (quoted) {
+            return null;
+        }
+        if (inWord) {
+            words.add(word.toString());
+        }
+        return words;
+    }
+
+    /** Writes the state the commands changed to disk. */
+    private static void save() {
+        for (Map.Entry<String, String> ref : REFS.entrySet()) {
+            Refs.write(ref.getKey(), ref.getValue());
+        }
+        REFS.clear();
+        if (headChanged) {
+            head.write();
+            headChanged = false;
+        }
+        if (indexChanged) {
+            index.write();
+            indexChanged = false;
+        }
+        StatCache.write();
+    }
+
+    static Head head() {
+        if (head == null) {
+            head = Head.read();
+        }
+        return head.copy();
+    }
+
+    static void setHead(Head saved) {
+        head = saved.copy();
+        headChanged = true;
+    }
+
+    /** Returns the commit the batch moved BRANCH to, or null if it did not move it. */
+    static String ref(String branch) {
+        return REFS.get(branch);
+    }
+
+    /** Returns the branches the batch moved, to their commits. */
+    static Map<String, String> refs() {
+        return REFS;
+    }
+
+    static void setRef(String branch, String id) {
+        REFS.put(branch, id);
+    }
+
+    static Index index() {
+        if (index == null) {
+            index = Index.read();
+        }
+        return index.copy();
+    }
+
+    static void setIndex(Index saved) {
+        index = saved.copy();
+        indexChanged = true;
+    }
+}
@@ -0,0 +1,459 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/** Reads and writes file blobs in the .gitlet/committedfiles object store.
+ * A blob is stored as a loose object: a zlib (deflate) stream whose inflated
+ * contents are the header "blob SIZE\0" followed by the file's bytes.
+ * Blobs written by older versions of gitlet are plain copies of the file;
+ * readers still accept those and upgrade() converts them in place.
+ *
+ * Files of CHUNK_THRESHOLD bytes or more are split into content-defined
+ * chunks (see Chunker), each stored as a blob of its own, and stored under
+ * the file's id as a chunk list: the header "chunks SIZE\0" followed by the
+ * raw id and 4-byte length of each chunk. A new version of a large file
+ * stores only the chunks that changed, and readers reassemble it by
+ * streaming the chunks one after another.
+ *
+ * Files are streamed through fixed-size buffers on the way in and out, so
+ * memory use does not depend on their size. store() hashes a large file
+ * while it writes the object, reading it once; a small one is hashed first,
+ * so nothing is written when its blob is already stored. Objects are never hard-linked into the
+ * working directory: they are compressed, and an edit through the link
+ * would change the stored version too.
+ *  @author Daniel Michles
+ */
+public class Blob {
+
+    /** Header prefix of a loose blob object. */
+    static final String HEADER = "blob ";
+
+    /** Header prefix of a loose chunk list. */
+    static final String CHUNKS_HEADER = "chunks ";
+
+    /** Files at least this large are stored as chunk lists. */
+    static final long CHUNK_THRESHOLD = 1024 * 1024;
+
+    /** Start of the names of the temporary files large blobs are stored through. */
+    static final String INCOMING_PREFIX = "incoming-";
+
+    /** Length of a chunk list entry: a raw chunk id and its length. */
+    private static final int CHUNK_ENTRY_LENGTH = ObjectId.LENGTH + 4;
+
+    /** Size of the buffers used when streaming blob contents. */
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Contents of blobs that had to be materialized in memory (such as
+     *  delta-compressed packed blobs and their bases), weighed in bytes.
+     *  The arrays are shared and must not be modified. */
+    static final ObjectCache<byte[]> CACHE = new ObjectCache<>("blob", 32L * 1024 * 1024, b -> b.length);
+
+    /** Stores the contents of SOURCE under ID, unless the object already exists. */
+    public static void save(File source, String id) {
+        File target = Repository.objectFile(Repository.COMMITTED_DIR, id);
+        if (target.exists() || Pack.contains(id)) {
+            return;
+        }
+        target.getParentFile().mkdirs();
+        File temp = Utils.join(target.getParentFile(), target.getName() + ".tmp");
+        try (InputStream in = new FileInputStream(source)) {
+            if (source.length() >= CHUNK_THRESHOLD) {
+                writeChunked(new BufferedInputStream(in, BUFFER_SIZE), temp);
+            } else {
+                writeLoose(in, source.length(), temp);
+            }
+            Files.move(temp.toPath(), target.toPath(), ATOMIC_MOVE);
+        } catch (IOException e) {
+            temp.delete();
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /** Stores the contents of SOURCE and returns their id, reading SOURCE
+     *  once. A file under CHUNK_THRESHOLD bytes is read into memory, hashed,
+     *  and deflated only if the object is new. A larger one is hashed as it
+     *  is chunked into a temporary file, which is then renamed into place, or
+     *  dropped if the object already exists. */
+    static String store(File source) {
+        File temp = null;
+        try {
+            String id;
+            long size = source.length();
+            if (size < CHUNK_THRESHOLD) {
+                byte[] data = Files.readAllBytes(source.toPath());
+                id = Utils.bytesToHex(MessageDigest.getInstance("SHA-1").digest(data));
+                File target = Repository.objectFile(Repository.COMMITTED_DIR, id);
+                if (target.exists() || Pack.contains(id)) {
+                    return id;
+                }
+                /* Named for the thread, as others may be storing the same contents. */
+                target.getParentFile().mkdirs();
+                temp = Utils.join(target.getParentFile(),
+                        target.getName() + "-" + Thread.currentThread().getId() + ".tmp");
+                writeLoose(new ByteArrayInputStream(data), data.length, temp);
+            } else {
+                temp = File.createTempFile(INCOMING_PREFIX, ".tmp", Repository.COMMITTED_DIR);
+                MessageDigest md = MessageDigest.getInstance("SHA-1");
+                try (InputStream in = new DigestInputStream(
+                        new BufferedInputStream(new FileInputStream(source), BUFFER_SIZE), md)) {
+                    writeChunked(in, temp);
+                }
+                id = Utils.bytesToHex(md.digest());
+            }
+            File target = Repository.objectFile(Repository.COMMITTED_DIR, id);
+            if (!target.exists() && !Pack.contains(id)) {
+                target.getParentFile().mkdirs();
+                Files.move(temp.toPath(), target.toPath(), ATOMIC_MOVE);
+            }
+            return id;
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        } finally {
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+    /** Writes the blob ID into TARGET, overwriting TARGET if it exists and
+     *  creating its directory if it does not. */
+    public static void restore(String id, File target) {
+        target.getParentFile().mkdirs();
+        try (InputStream in = open(id);
+             OutputStream out = new FileOutputStream(target)) {
+            in.transferTo(out);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /** Returns a stream over the contents of the blob ID, without its header.
+     *  Packed blobs are found through the pack indexes before loose ones,
+     *  and a loose one is opened only once. */
+    public static InputStream open(String id) throws IOException {
+        byte[] cached = CACHE.getIfPresent(id);
+        if (cached != null) {
+            return new ByteArrayInputStream(cached);
+        }
+        InputStream packed = Pack.open(id);
+        if (packed != null) {
+            return packed;
+        }
+        Loose loose;
+        try {
+            loose = openLoose(Repository.objectFile(Repository.COMMITTED_DIR, id));
+        } catch (FileNotFoundException e) {
+            throw Repository.missingObject(Repository.COMMITTED_DIR, id, "Blob " + id + " is missing.");
+        }
+        if (loose.header != null && loose.header.type.equals(CHUNKS_HEADER)) {
+            return reassemble(loose.in, loose.header.size);
+        }
+        return loose.in;
+    }
+
+    /** Returns the entries of the chunk list stored under ID, or null if the
+     *  blob ID is stored whole. */
+    static byte[] readChunkList(String id) throws IOException {
+        if (Pack.contains(id)) {
+            return Pack.readChunkList(id);
+        }
+        File file = Repository.objectFile(Repository.COMMITTED_DIR, id);
+        if (!file.isFile()) {
+            return null;
+        }
+        Loose loose = openLoose(file);
+        try (InputStream in = loose.in) {
+            return loose.header != null && loose.header.type.equals(CHUNKS_HEADER) ? in.readAllBytes() : null;
+        }
+    }
+
+    /** Returns the raw ids of the chunks listed in the chunk list entries LIST. */
+    static List<String> chunkIds(byte[] list) {
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i + CHUNK_ENTRY_LENGTH <= list.length; i += CHUNK_ENTRY_LENGTH) {
+            result.add(ObjectId.fromRaw(list, i).toString());
+        }
+        return result;
+    }
+
+    /** Returns a stream over the contents of the chunks listed by the chunk
+     *  list entries read from LIST, which add up to SIZE bytes, or to any
+     *  number if SIZE is negative. Each chunk is opened when the one before
+     *  it is used up, and closing the stream closes LIST. Reading fails if
+     *  the list ends inside an entry or the chunks are not the listed sizes. */
+    static InputStream reassemble(InputStream list, long size) {
+        return new ChunkedInputStream(new DataInputStream(list), size);
+    }
+
+    /** The concatenation of the chunks of a chunk list. */
+    private static class ChunkedInputStream extends InputStream {
+        private final DataInputStream list;
+        private final long size;
+        private final byte[] id = new byte[ObjectId.LENGTH];
+        /* The chunk being read, or null before the first and after the last. */
+        private InputStream chunk;
+        /* Bytes of the chunk being read still to come, by its list entry. */
+        private long remaining;
+        private long total;
+        private boolean done;
+
+        ChunkedInputStream(DataInputStream list, long size) {
+            this.list = list;
+            this.size = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (!done) {
+                if (chunk != null) {
+                    int n = chunk.read(b, off, len);
+                    if (n >= 0) {
+                        remaining -= n;
+                        total += n;
+                        if (remaining < 0) {
+                            throw new IOException("corrupt chunk list: chunk longer than listed");
+                        }
+                        return n;
+                    }
+                    if (remaining != 0) {
+                        throw new IOException("corrupt chunk list: chunk shorter than listed");
+                    }
+                    chunk.close();
+                    chunk = null;
+                }
+                /* Only the end of the list between entries ends the stream. */
+                int first = list.read();
+                if (first < 0) {
+                    done = true;
+                    if (size >= 0 && total != size) {
+                        throw new IOException("truncated chunk list");
+                    }
+                    break;
+                }
+                id[0] = (byte) first;
+                try {
+                    list.readFully(id, 1, id.length - 1);
+                    remaining = list.readInt() & 0xffffffffL;
+                } catch (EOFException e) {
+                    throw new IOException("truncated chunk list");
+                }
+                chunk = open(Utils.bytesToHex(id));
+            }
+            return -1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            done = true;
+            try {
+                if (chunk != null) {
+                    chunk.close();
+                }
+            } finally {
+                list.close();
+            }
+        }
+    }
+
+    /** Converts every legacy (uncompressed) blob in the object store into a
+     *  loose object.  Returns the number of blobs converted. */
+    public static int upgrade() {
+        List<String> ids = Repository.objectIds(Repository.COMMITTED_DIR);
+        int converted = 0;
+        for (String id : ids) {
+            File file = Repository.objectFile(Repository.COMMITTED_DIR, id);
+            if (isLoose(file)) {
+                continue;
+            }
+            File temp = Utils.join(file.getParentFile(), file.getName() + ".tmp");
+            try (InputStream in = new FileInputStream(file)) {
+                writeLoose(in, file.length(), temp);
+                Files.move(temp.toPath(), file.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+                converted += 1;
+            } catch (IOException e) {
+                temp.delete();
+                throw new IllegalArgumentException(e.getMessage());
+            }
+        }
+        return converted;
+    }
+
+    /** Stores each chunk of IN that is not already stored, and writes their
+     *  chunk list into TARGET. */
+    private static void writeChunked(InputStream in, File target) throws IOException {
+        ByteArrayOutputStream list = new ByteArrayOutputStream();
+        DataOutputStream entries = new DataOutputStream(list);
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+        long[] size = new long[1];
+        Chunker.split(in, (data, length) -> {
+            size[0] += length;
+            md.update(data, 0, length);
+            byte[] raw = md.digest();
+            String id = Utils.bytesToHex(raw);
+            File chunk = Repository.objectFile(Repository.COMMITTED_DIR, id);
+            if (!chunk.exists() && !Pack.contains(id)) {
+                chunk.getParentFile().mkdirs();
+                File temp = Utils.join(chunk.getParentFile(), chunk.getName() + ".tmp");
+                try {
+                    writeLoose(new ByteArrayInputStream(data, 0, length), length, temp);
+                    Files.move(temp.toPath(), chunk.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+                } finally {
+                    temp.delete();
+                }
+            }
+            entries.write(raw);
+            entries.writeInt(length);
+        });
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try (OutputStream out = new DeflaterOutputStream(new FileOutputStream(target), deflater)) {
+            out.write((CHUNKS_HEADER + size[0] + "\0").getBytes(StandardCharsets.US_ASCII));
+            list.writeTo(out);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /** Deflates the header and the SIZE bytes of IN into TARGET. */
+    private static void writeLoose(InputStream in, long size, File target) throws IOException {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try (OutputStream out = new DeflaterOutputStream(
+                new BufferedOutputStream(new FileOutputStream(target), BUFFER_SIZE),
+                deflater, BUFFER_SIZE)) {
+            out.write((HEADER + size + "\0").getBytes(StandardCharsets.US_ASCII));
+            in.transferTo(out);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /** The type and content size read from the header of a loose object. */
+    private static class Header {
+        private final String type;
+        private final long size;
+
+        Header(String type, long size) {
+            this.type = type;
+            this.size = size;
+        }
+    }
+
+    /** Consumes the "blob SIZE\0" or "chunks SIZE\0" header from IN and
+     *  returns it. */
+    private static Header readHeader(InputStream in) throws IOException {
+        StringBuilder prefix = new StringBuilder();
+        int c;
+        while ((c = in.read()) > 0 && c != ' ' && prefix.length() < CHUNKS_HEADER.length()) {
+            prefix.append((char) c);
+        }
+        prefix.append((char) c);
+        String type = prefix.toString();
+        if (!type.equals(HEADER) && !type.equals(CHUNKS_HEADER)) {
+            throw new IOException("corrupt blob header");
+        }
+        boolean digits = false;
+        long size = 0;
+        while ((c = in.read()) > 0) {
+            if (c < '0' || c > '9' || size > (Long.MAX_VALUE - 9) / 10) {
+                throw new IOException("corrupt blob header");
+            }
+            size = size * 10 + (c - '0');
+            digits = true;
+        }
+        if (c != 0 || !digits) {
+            throw new IOException("corrupt blob header");
+        }
+        return new Header(type, size);
+    }
+
+    /** An object file opened by openLoose: IN reads its contents after
+     *  HEADER, or the whole file if it is a legacy plain copy and HEADER is
+     *  null. */
+    private static class Loose {
+        private final Header header;
+        private final InputStream in;
+
+        Loose(Header header, InputStream in) {
+            this.header = header;
+            this.in = in;
+        }
+    }
+
+    /** Opens FILE, a loose object or a legacy plain copy, reading it only
+     *  once. A file is loose when it starts with a valid zlib header and
+     *  inflates to a blob header; otherwise it is read back from the start. */
+    private static Loose openLoose(File file) throws IOException {
+        InputStream raw = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        try {
+            raw.mark(BUFFER_SIZE);
+            int cmf = raw.read();
+            int flg = raw.read();
+            raw.reset();
+            if (flg >= 0 && (cmf & 0x0f) == 8 && (cmf * 256 + flg) % 31 == 0) {
+                InputStream in = new InflaterInputStream(raw);
+                try {
+                    return new Loose(readHeader(in), in);
+                } catch (IOException e) {
+                    raw.reset();
+                }
+            }
+            return new Loose(null, raw);
+        } catch (IOException | RuntimeException e) {
+            raw.close();
+            throw e;
+        }
+    }
+
+    /** Returns true iff FILE holds a loose blob object rather than a legacy
+     *  plain copy. */
+    static boolean isLoose(File file) {
+        try {
+            Loose loose = openLoose(file);
+            loose.in.close();
+            return loose.header != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
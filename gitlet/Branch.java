@@ -1,10 +1,26 @@
 package gitlet;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.HashMap;
 
+/** The branches as older versions kept them, all in the file .gitlet/branch:
+ * key is the branch name, value is the id of its front commit. Saved as the
+ * magic bytes "GB", a version byte, the varint branch count and, sorted by
+ * name, each varint-length name and raw 20-byte commit id, or before that
+ * with Java serialization. Only read now, until Refs.pack moves the branches
+ * into packed-refs.
+ */
 public class Branch implements Serializable {
+    /* Pinned to the value of the original class so existing branch files stay readable. */
+    private static final long serialVersionUID = -1990723154237506425L;
+
+    private static final byte[] MAGIC = {'G', 'B'};
+    private static final int VERSION = 1;
+
     private HashMap<String,String> branch;
 
     public Branch() {
@@ -14,14 +30,29 @@ public class Branch implements Serializable {
         return branch;
     }
 
-    public static Branch load() {
+    /* Reads the branch file. */
+    static Branch read() {
         File file = Utils.join(Repository.GITLET_DIR,Repository.BRANCH_FILE);
-        Branch branch = Utils.readObject(file,Branch.class);
-        return branch;
-    }
-
-    public void save() {
-        File file = Utils.join(Repository.GITLET_DIR, Repository.BRANCH_FILE);
-        Utils.writeObject(file,this);
+        byte[] data = Utils.readContents(file);
+        if (Utils.isSerializedObject(data)) {
+            return Utils.deserialize(data, Branch.class);
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            if (in.readByte() != MAGIC[0] || in.readByte() != MAGIC[1]
+                    || in.readUnsignedByte() != VERSION) {
+                throw new IllegalArgumentException("unknown branch format");
+            }
+            Branch branch = new Branch();
+            int count = (int) Utils.readVarint(in);
+            byte[] raw = new byte[Utils.UID_LENGTH / 2];
+            for (int i = 0; i < count; i += 1) {
+                String name = Utils.readString(in);
+                in.readFully(raw);
+                branch.branch.put(name, Utils.bytesToHex(raw));
+            }
+            return branch;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("corrupt branch file: " + e.getMessage());
+        }
     }
 }
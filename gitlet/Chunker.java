@@ -0,0 +1,104 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/** Splits a stream into content-defined chunks with FastCDC.
+ *
+ * A gear hash (hash = (hash << 1) + GEAR[byte]) rolls over the bytes, and a
+ * chunk ends where the top bits of the hash are all zero. Since the hash only
+ * depends on the last 64 bytes, the same content gives the same boundaries
+ * wherever it sits in a file, so an edit changes only the chunks around it
+ * and the rest are shared with the previous version. Boundaries are not
+ * looked for in the first MIN_SIZE bytes of a chunk, a harder mask is used
+ * before AVERAGE_SIZE and an easier one after it (normalized chunking), so
+ * chunk sizes cluster around AVERAGE_SIZE, and no chunk exceeds MAX_SIZE.
+ *
+ * The gear table and sizes decide the stored chunk ids: changing them makes
+ * new versions of old files share nothing with what is already stored.
+ *  @author Daniel Michles
+ */
+class Chunker {
+
+    /** Smallest chunk, except for the last one of a stream. */
+    static final int MIN_SIZE = 16 * 1024;
+    /** Size chunks are cut around. */
+    static final int AVERAGE_SIZE = 64 * 1024;
+    /** Largest chunk. */
+    static final int MAX_SIZE = 256 * 1024;
+
+    /* 18 and 14 top bits: two bits harder and easier than the 16 bits of
+     * AVERAGE_SIZE, so cuts before it are rare and cuts after it come soon. */
+    private static final long MASK_SMALL = -1L << (64 - 18);
+    private static final long MASK_LARGE = -1L << (64 - 14);
+
+    /** A random 64-bit value for each byte value, from a fixed seed. */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        long seed = 0x6769746c65744344L;
+        for (int i = 0; i < GEAR.length; i += 1) {
+            /* SplitMix64 */
+            seed += 0x9e3779b97f4a7c15L;
+            long z = seed;
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    /** Receives the chunks of a stream in order. */
+    interface Consumer {
+        /** Takes the chunk held in the first LENGTH bytes of DATA, which is
+         *  reused for the next chunk once this returns. */
+        void accept(byte[] data, int length) throws IOException;
+    }
+
+    /** Passes the chunks of IN to CONSUMER in order. An empty stream has no chunks. */
+    static void split(InputStream in, Consumer consumer) throws IOException {
+        byte[] buffer = new byte[MAX_SIZE];
+        byte[] chunk = new byte[MAX_SIZE];
+        int filled = 0;
+        boolean eof = false;
+        while (true) {
+            if (!eof) {
+                int n = in.readNBytes(buffer, filled, buffer.length - filled);
+                filled += n;
+                eof = filled < buffer.length;
+            }
+            if (filled == 0) {
+                return;
+            }
+            int cut = cut(buffer, filled);
+            System.arraycopy(buffer, 0, chunk, 0, cut);
+            System.arraycopy(buffer, cut, buffer, 0, filled - cut);
+            filled -= cut;
+            consumer.accept(chunk, cut);
+        }
+    }
+
+    /** Returns the length of the chunk starting DATA, of which the first
+     *  LENGTH bytes are available. */
+    private static int cut(byte[] data, int length) {
+        if (length <= MIN_SIZE) {
+            return length;
+        }
+        int end = Math.min(length, MAX_SIZE);
+        int normal = Math.min(end, AVERAGE_SIZE);
+        long hash = 0;
+        int i = MIN_SIZE;
+        for (; i < normal; i += 1) {
+            hash = (hash << 1) + GEAR[data[i] & 0xff];
+            if ((hash & MASK_SMALL) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < end; i += 1) {
+            hash = (hash << 1) + GEAR[data[i] & 0xff];
+            if ((hash & MASK_LARGE) == 0) {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+}
@@ -1,17 +1,45 @@
 package gitlet;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
 
 /** Represents a gitlet commit object
  * which contains message, timestamp, parent references in the form of sha1
- * strings. Contains a HashMap referencing file blobs.
- * The object is Serializable to enable saving to and loading to file.
+ * strings. References the root Tree of its files.
+ *
+ * Commits are saved in a compact binary encoding: the magic bytes "GC", a
+ * version byte, a flags byte saying which parents are present, the raw
+ * 20-byte parent ids, the timestamp, the varint-length message, and last the
+ * raw id of the root tree. Version 1 commits instead end with the whole file
+ * table sorted by path, each path stored as the varint length of the prefix
+ * it shares with the previous path and the varint-length remainder, followed
+ * by the raw blob id. Those, and commits written with Java serialization by
+ * older versions, are still read; their trees are written on first use.
+ *
+ * Commits are immutable once built, so loaded commits are shared through a
+ * least-recently-used cache (CACHE) for the rest of the command, and the
+ * file lists flattened from their trees through another (MANIFESTS).
  *  @author Daniel Michles
  */
 public class Commit implements Serializable {
+    /* Pinned to the value of the original class so existing commits stay readable. */
+    private static final long serialVersionUID = -5228852065044991541L;
     /**
      *
      *
@@ -20,47 +48,131 @@ public class Commit implements Serializable {
      * variable is used. We've provided one example for `message`.
      */
 
+    /* The fields older versions serialized. The file table was a HashMap from
+     * filename to hex blob id, named map; readObject turns it into a Manifest.
+     */
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("message", String.class),
+        new ObjectStreamField("timeStamp", Date.class),
+        new ObjectStreamField("map", HashMap.class),
+        new ObjectStreamField("parentReference", String.class),
+        new ObjectStreamField("parentReference2", String.class),
+    };
+
     /** The message of this Commit. */
     private String message;
     private Date timeStamp;
-    /* Key is filename, value is the file's sha1 representation of its text */
-    private HashMap<String,String> map;
+    /* The tracked files of an older commit, read with it; null for a commit with a tree. */
+    private transient Manifest manifest;
     /* sha1 of the parent1 commit */
     private String parentReference;
     /* sha1 of the parent2 commit */
     private String parentReference2;
+    /* The id this commit was loaded or saved under */
+    private transient String id;
+    /* Id of the root tree, or null for an older commit not yet given one */
+    private transient String tree;
+
+    private static final byte[] MAGIC = {'G', 'C'};
+    private static final int VERSION = 2;
+    /* Version that stores the file table rather than a tree */
+    private static final int FLAT_VERSION = 1;
+    private static final int HAS_PARENT = 1;
+    private static final int HAS_PARENT2 = 2;
 
+    /* Loaded commits, weighed by their number of files: only older commits
+     * carry theirs, as the files of the others are cached in MANIFESTS */
+    static final ObjectCache<Commit> CACHE =
+            new ObjectCache<>("commit", 250_000, commit -> 1 + (commit.manifest == null ? 0 : commit.manifest.size()));
+    /* The files of root trees flattened by getManifest, weighed by their number of files */
+    static final ObjectCache<Manifest> MANIFESTS =
+            new ObjectCache<>("manifest", 250_000, manifest -> 1 + manifest.size());
 
     public Commit(){
         this.message = "initial commit";
         this.timeStamp = new Date(0);
-        map = new HashMap<>();
+        this.tree = Tree.EMPTY_ID;
         this.parentReference = null;
         this.parentReference2 = null;
     }
 
+    /* Creates a commit with the given MESSAGE, TIMESTAMP, root TREE and parents. */
+    public Commit(String message, Date timeStamp, String tree,
+                  String parentReference, String parentReference2) {
+        this.message = message;
+        this.timeStamp = new Date(timeStamp.getTime());
+        this.tree = tree;
+        this.parentReference = parentReference;
+        this.parentReference2 = parentReference2;
+    }
+
     public String getMessage() {
         return message;
     }
 
-    public void setMessage(String message) {
-        this.message = message;
+    public Date getTimeStamp() {
+        return new Date(timeStamp.getTime());
     }
 
-    public Date getTimeStamp() {
-        return timeStamp;
+    /* Returns the tracked files and their blob ids.
+     * This reads every tree of the commit; prefer getFile and Tree.diff where they do.
+     */
+    public Manifest getManifest() {
+        if (manifest != null) {
+            return manifest;
+        }
+        return MANIFESTS.get(tree, root -> {
+            Manifest.Builder files = new Manifest.Builder();
+            Tree.flatten(root, "", files);
+            return files.build();
+        });
     }
 
-    public void setTimeStamp(Date timeStamp) {
-        this.timeStamp = timeStamp;
+    /* Returns the blob id of the tracked file PATH, or null if it is not tracked. */
+    public String getFile(String path) {
+        if (tree == null) {
+            ObjectId blob = manifest.get(path);
+            return blob == null ? null : blob.toString();
+        }
+        return Tree.get(tree, path);
     }
 
-    public HashMap<String, String> getMap() {
-        return map;
+    /* Returns the id of the root tree, writing the trees of an older commit first if needed. */
+    public synchronized String getTree() {
+        if (tree == null) {
+            tree = Tree.write(toMap(manifest));
+        }
+        return tree;
     }
 
-    public void setParentReference(String parentReference) {
-        this.parentReference = parentReference;
+    /* Returns the files of MANIFEST as a map from filename to hex blob id. */
+    private static HashMap<String, String> toMap(Manifest manifest) {
+        HashMap<String, String> files = new HashMap<>(manifest.size() * 4 / 3 + 1);
+        for (Map.Entry<String, ObjectId> entry : manifest) {
+            files.put(entry.getKey(), entry.getValue().toString());
+        }
+        return files;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        message = (String) fields.get("message", null);
+        timeStamp = (Date) fields.get("timeStamp", null);
+        @SuppressWarnings("unchecked")
+        HashMap<String, String> map = (HashMap<String, String>) fields.get("map", null);
+        manifest = map == null ? Manifest.EMPTY : Manifest.of(map);
+        parentReference = (String) fields.get("parentReference", null);
+        parentReference2 = (String) fields.get("parentReference2", null);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("message", message);
+        fields.put("timeStamp", timeStamp);
+        fields.put("map", toMap(getManifest()));
+        fields.put("parentReference", parentReference);
+        fields.put("parentReference2", parentReference2);
+        out.writeFields();
     }
 
     public String getParentReference() {
@@ -71,19 +183,167 @@ public class Commit implements Serializable {
         return parentReference2;
     }
 
-    public void setParentReference2(String parentReference2) {
-        this.parentReference2 = parentReference2;
+    public static Commit load(String sha1) {
+        /* Once the commit graph is loaded it knows every commit id, so unknown ids fail without touching disk */
+        CommitGraph graph = CommitGraph.current();
+        if (graph != null && !graph.contains(sha1) && CACHE.getIfPresent(sha1) == null) {
+            throw Repository.missingObject(Repository.COMMITS_DIR, sha1, "No commit with that id exists.");
+        }
+        return CACHE.get(sha1, id -> {
+            Commit commit = decode(readRaw(id), true);
+            commit.id = id;
+            return commit;
+        });
     }
 
-    public static Commit load(String sha1) {
-        File file = Utils.join(Repository.COMMITS_DIR,sha1);
-        Commit commit = Utils.readObject(file,Commit.class);
+    /* Loads commit SHA1 without decoding the file table of an older commit, for
+     * callers that only need the message, timestamp and parents.
+     */
+    public static Commit loadHeader(String sha1) {
+        Commit commit = CACHE.getIfPresent(sha1);
+        if (commit == null) {
+            commit = decode(readRaw(sha1), false);
+            commit.id = sha1;
+        }
         return commit;
     }
 
+    /* Returns the id this commit was loaded or last saved under. Unlike sha1(),
+     * this does not depend on the commit being re-hashed identically. */
+    public String getId() {
+        return id;
+    }
+
+    /* Returns the stored bytes of commit SHA1, looking in the packs before the loose objects. */
+    static byte[] readRaw(String sha1) {
+        byte[] data = Pack.read(sha1);
+        if (data == null) {
+            File file = Repository.objectFile(Repository.COMMITS_DIR, sha1);
+            if (!file.isFile()) {
+                throw Repository.missingObject(Repository.COMMITS_DIR, sha1, "No commit with that id exists.");
+            }
+            data = Utils.readContents(file);
+        }
+        return data;
+    }
+
+    /* Returns true iff a commit with id SHA1 exists. */
+    public static boolean exists(String sha1) {
+        return Repository.isObjectId(sha1)
+                && (Pack.contains(sha1) || Repository.objectFile(Repository.COMMITS_DIR, sha1).isFile());
+    }
+
+    /* Returns the ids of all commits, packed or loose, in lexicographic order. */
+    public static List<String> ids() {
+        TreeSet<String> ids = new TreeSet<>(Repository.objectIds(Repository.COMMITS_DIR));
+        ids.addAll(Pack.ids(Pack.COMMIT));
+        return new ArrayList<>(ids);
+    }
+
     public void save(){
-        File file = Utils.join(Repository.COMMITS_DIR, this.sha1());
-        Utils.writeObject(file,this);
+        id = this.sha1();
+        File file = Repository.objectFile(Repository.COMMITS_DIR, id);
+        file.getParentFile().mkdirs();
+        Utils.writeContents(file, encode());
+        CACHE.put(id, this);
+    }
+
+    /* Returns the binary encoding of this commit. */
+    byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            int flags = (parentReference != null ? HAS_PARENT : 0)
+                    | (parentReference2 != null ? HAS_PARENT2 : 0);
+            out.writeByte(flags);
+            if (parentReference != null) {
+                out.write(Utils.hexToBytes(parentReference));
+            }
+            if (parentReference2 != null) {
+                out.write(Utils.hexToBytes(parentReference2));
+            }
+            out.writeLong(timeStamp.getTime());
+            Utils.writeString(out, message);
+            out.write(Utils.hexToBytes(getTree()));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /* Returns the commit encoded in DATA, in either the binary or the legacy
+     * serialized form. The file table is only decoded if WITHFILES.
+     */
+    static Commit decode(byte[] data, boolean withFiles) {
+        if (Utils.isSerializedObject(data)) {
+            return Utils.deserialize(data, Commit.class);
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            if (in.readByte() != MAGIC[0] || in.readByte() != MAGIC[1]) {
+                throw new IllegalArgumentException("unknown commit format");
+            }
+            int version = in.readUnsignedByte();
+            if (version != VERSION && version != FLAT_VERSION) {
+                throw new IllegalArgumentException("unknown commit format");
+            }
+            Commit commit = new Commit();
+            int flags = in.readUnsignedByte();
+            byte[] raw = new byte[Utils.UID_LENGTH / 2];
+            if ((flags & HAS_PARENT) != 0) {
+                in.readFully(raw);
+                commit.parentReference = Utils.bytesToHex(raw);
+            }
+            if ((flags & HAS_PARENT2) != 0) {
+                in.readFully(raw);
+                commit.parentReference2 = Utils.bytesToHex(raw);
+            }
+            commit.timeStamp = new Date(in.readLong());
+            commit.message = Utils.readString(in);
+            if (version == VERSION) {
+                in.readFully(raw);
+                commit.tree = Utils.bytesToHex(raw);
+                return commit;
+            }
+            commit.tree = null;
+            commit.manifest = Manifest.EMPTY;
+            if (!withFiles) {
+                return commit;
+            }
+            int count = (int) Utils.readVarint(in);
+            HashMap<String, String> files = new HashMap<>(count * 4 / 3 + 1);
+            byte[] path = new byte[0];
+            for (int i = 0; i < count; i += 1) {
+                int shared = (int) Utils.readVarint(in);
+                int rest = (int) Utils.readVarint(in);
+                byte[] next = Arrays.copyOf(path, shared + rest);
+                in.readFully(next, shared, rest);
+                in.readFully(raw);
+                path = next;
+                files.put(new String(path, StandardCharsets.UTF_8), Utils.bytesToHex(raw));
+            }
+            commit.manifest = Manifest.of(files);
+            return commit;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("corrupt commit: " + e.getMessage());
+        }
+    }
+
+    /* Rewrites every loose commit still in the legacy serialized form or
+     * holding its file table in the current encoding, writing its trees.
+     * Returns the number of commits converted.
+     */
+    static int upgrade() {
+        int converted = 0;
+        for (String sha1 : Repository.objectIds(Repository.COMMITS_DIR)) {
+            File file = Repository.objectFile(Repository.COMMITS_DIR, sha1);
+            Commit commit = decode(Utils.readContents(file), true);
+            if (commit.tree == null) {
+                Utils.writeContents(file, commit.encode());
+                converted += 1;
+            }
+        }
+        return converted;
     }
 
     public String sha1(){
@@ -91,6 +351,6 @@ public class Commit implements Serializable {
     }
 
     public String toString() {
-        return message + timeStamp + map + parentReference;
+        return message + timeStamp + tree + parentReference;
     }
 }
@@ -0,0 +1,551 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/** The commit graph: parents, commit time, root tree and generation number
+ * of every commit in fixed-width tables, so history can be walked without
+ * loading commit objects.
+ *
+ * The graph is a base file and a layer of the commits added since.
+ * .gitlet/commit-graph is a header (magic, version, count, nonce) followed by
+ * one RECORD_SIZE record per commit, in the order the commits were added. A
+ * commit is always added after its parents, so records only point backwards.
+ * A record holds the commit id, the positions of its parents (NONE if
+ * absent), its generation number (1 for a root commit, otherwise one more
+ * than its highest parent), its time in milliseconds and the id of its root
+ * tree. The records are followed by a lookup table of (id, position) pairs
+ * sorted by id, for binary search. The base is memory-mapped for reading.
+ *
+ * .gitlet/commit-graph-layer is a header (magic, version, the nonce of the
+ * base it extends) followed by the records of later commits, which take the
+ * positions after the base's. Adding a commit appends its record to the
+ * layer, so it costs the same however long the history is. Once the layer
+ * holds LAYER_LIMIT commits, or on repack, base and layer are merged into a
+ * new base with a new nonce and the layer is removed.
+ *
+ * The base is only ever replaced whole, by renaming a complete new copy over
+ * it, so a reader always sees records and lookup table that agree. A reader
+ * ignores a layer written for another base, and stops at a record that is
+ * incomplete or does not follow from the ones before it, so it sees either
+ * the commits added so far or fewer. Only a process holding the WriteLock
+ * writes either file; a command that finds the graph missing or behind the
+ * refs takes the lock to bring the file up to date.
+ *  @author Daniel Michles
+ */
+class CommitGraph {
+
+    /** Parent position of a missing parent. */
+    static final int NONE = -1;
+
+    private static final int GRAPH_MAGIC = 0x43475048; // "CGPH"
+    private static final int LAYER_MAGIC = 0x43474c59; // "CGLY"
+    private static final int VERSION = 4;
+    private static final int HEADER_SIZE = 20;
+    private static final int LAYER_HEADER_SIZE = 16;
+    private static final int ID_LENGTH = Utils.UID_LENGTH / 2;
+    private static final int PARENT_OFFSET = ID_LENGTH;
+    private static final int PARENT2_OFFSET = PARENT_OFFSET + 4;
+    private static final int GENERATION_OFFSET = PARENT2_OFFSET + 4;
+    private static final int TIME_OFFSET = GENERATION_OFFSET + 4;
+    private static final int TREE_OFFSET = TIME_OFFSET + 8;
+    private static final int RECORD_SIZE = TREE_OFFSET + ID_LENGTH;
+    private static final int LOOKUP_SIZE = ID_LENGTH + 4;
+    /** Number of commits the layer holds before it is merged into the base. */
+    static final int LAYER_LIMIT = 1024;
+
+    /** The graph of this repository, opened on first use. */
+    private static CommitGraph graph;
+
+    private final ByteBuffer data;
+    private final long nonce;
+    /* Number of commits in the base. */
+    private final int baseCount;
+    /* Offset of the lookup table in DATA. */
+    private final int lookupBase;
+    /* The records of the layer, and the positions of the commits they hold. */
+    private final ByteBuffer layer;
+    private final TreeMap<String, Integer> layerIds;
+
+    private CommitGraph(ByteBuffer data, int baseCount, long nonce, ByteBuffer layer,
+                        TreeMap<String, Integer> layerIds) {
+        this.data = data;
+        this.baseCount = baseCount;
+        this.nonce = nonce;
+        this.lookupBase = HEADER_SIZE + baseCount * RECORD_SIZE;
+        this.layer = layer;
+        this.layerIds = layerIds;
+    }
+
+    /** Returns the commit graph, first bringing the files up to date if they
+     *  are missing or do not cover HEAD and every branch. */
+    static synchronized CommitGraph load() {
+        if (graph != null) {
+            return graph;
+        }
+        CommitGraph opened = open();
+        if (opened == null || !opened.coversRefs()) {
+            /* Rebuilding replaces the files commits append to, so it takes the
+             * WriteLock even when called by a command that only reads. Another
+             * process may have finished adding commits meanwhile. */
+            WriteLock.acquire();
+            try {
+                opened = open();
+                if (opened == null || !opened.coversRefs()) {
+                    rebuild();
+                    opened = open();
+                    if (opened == null) {
+                        throw Utils.error("Could not build the commit graph.");
+                    }
+                }
+            } finally {
+                WriteLock.release();
+            }
+        }
+        graph = opened;
+        return graph;
+    }
+
+    /** Returns the commit graph if this command has already loaded it, else null. */
+    static synchronized CommitGraph current() {
+        return graph;
+    }
+
+    /** Returns the number of commits in the graph. */
+    int count() {
+        return baseCount + layerIds.size();
+    }
+
+    /** Returns the position of commit ID, or NONE if ID is not in the graph. */
+    int position(String id) {
+        if (!Repository.isObjectId(id)) {
+            return NONE;
+        }
+        byte[] raw = Utils.hexToBytes(id);
+        int lo = 0;
+        int hi = baseCount - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareLookup(mid, raw);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return data.getInt(lookupBase + mid * LOOKUP_SIZE + ID_LENGTH);
+            }
+        }
+        return layerIds.getOrDefault(id.toLowerCase(), NONE);
+    }
+
+    /** Returns true iff commit ID is in the graph. */
+    boolean contains(String id) {
+        return position(id) != NONE;
+    }
+
+    /** Returns, in order, the ids of at most LIMIT commits whose ids start
+     *  with the hexadecimal PREFIX. Binary-searches the lookup table for the
+     *  first candidate, so this takes O(log n + LIMIT) steps, and merges in
+     *  the matches in the layer. */
+    List<String> withPrefix(String prefix, int limit) {
+        List<String> result = new ArrayList<>();
+        prefix = prefix.toLowerCase();
+        if (prefix.length() > Utils.UID_LENGTH) {
+            return result;
+        }
+        StringBuilder low = new StringBuilder(prefix);
+        while (low.length() < Utils.UID_LENGTH) {
+            low.append('0');
+        }
+        byte[] raw = Utils.hexToBytes(low.toString());
+        int lo = 0;
+        int hi = baseCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareLookup(mid, raw) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        for (int i = lo; i < baseCount && result.size() < limit; i += 1) {
+            byte[] id = new byte[ID_LENGTH];
+            data.get(lookupBase + i * LOOKUP_SIZE, id);
+            String hex = Utils.bytesToHex(id);
+            if (!hex.startsWith(prefix)) {
+                break;
+            }
+            result.add(hex);
+        }
+        for (String id : layerIds.tailMap(prefix).keySet()) {
+            if (!id.startsWith(prefix)) {
+                break;
+            }
+            result.add(id);
+        }
+        Collections.sort(result);
+        return result.size() > limit ? new ArrayList<>(result.subList(0, limit)) : result;
+    }
+
+    /** Returns the id of the commit at POSITION. */
+    String id(int position) {
+        byte[] raw = new byte[ID_LENGTH];
+        records(position).get(offset(position), raw);
+        return Utils.bytesToHex(raw);
+    }
+
+    int parent(int position) {
+        return records(position).getInt(offset(position) + PARENT_OFFSET);
+    }
+
+    int parent2(int position) {
+        return records(position).getInt(offset(position) + PARENT2_OFFSET);
+    }
+
+    int generation(int position) {
+        return records(position).getInt(offset(position) + GENERATION_OFFSET);
+    }
+
+    long time(int position) {
+        return records(position).getLong(offset(position) + TIME_OFFSET);
+    }
+
+    /** Returns the id of the root tree of the commit at POSITION. */
+    String tree(int position) {
+        byte[] raw = new byte[ID_LENGTH];
+        records(position).get(offset(position) + TREE_OFFSET, raw);
+        return Utils.bytesToHex(raw);
+    }
+
+    /** Returns the buffer holding the record of POSITION: the base or the layer. */
+    private ByteBuffer records(int position) {
+        return position < baseCount ? data : layer;
+    }
+
+    /** Returns the offset of the record of POSITION in records(POSITION). */
+    private int offset(int position) {
+        return position < baseCount ? HEADER_SIZE + position * RECORD_SIZE
+                : (position - baseCount) * RECORD_SIZE;
+    }
+
+    /** Compares the id of lookup entry INDEX with the raw id ID. */
+    private int compareLookup(int index, byte[] id) {
+        int base = lookupBase + index * LOOKUP_SIZE;
+        for (int i = 0; i < ID_LENGTH; i += 1) {
+            int cmp = (data.get(base + i) & 0xff) - (id[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    /** Returns true iff HEAD and every branch front commit are in the graph. */
+    private boolean coversRefs() {
+        if (position(Head.load().getCommitReference()) == NONE) {
+            return false;
+        }
+        for (String id : Refs.all().values()) {
+            if (position(id) == NONE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Adds the newly saved commit COMMIT by appending its record to the
+     *  layer, or by merging base and layer once the layer is full. If the
+     *  graph is missing or lacks a parent of COMMIT, it is rebuilt instead. */
+    static synchronized void add(Commit commit) {
+        CommitGraph current = graph != null ? graph : open();
+        String id = commit.getId();
+        if (current != null && current.position(id) != NONE) {
+            return;
+        }
+        if (current == null || missing(current, commit.getParentReference())
+                || missing(current, commit.getParentReference2())) {
+            rebuild();
+            return;
+        }
+        int parent = current.position(commit.getParentReference());
+        int parent2 = current.position(commit.getParentReference2());
+        ByteBuffer added = record(id, parent, parent2, generation(current, parent, parent2),
+                commit.getTimeStamp().getTime(), commit.getTree());
+        graph = null;
+        if (current.layerIds.size() >= LAYER_LIMIT) {
+            current.compact(added);
+        } else {
+            current.append(added);
+        }
+    }
+
+    /** Merges the layer into the base, so the next use maps one file. */
+    static synchronized void compact() {
+        CommitGraph current = graph != null ? graph : open();
+        graph = null;
+        if (current == null) {
+            rebuild();
+        } else if (!current.layerIds.isEmpty()) {
+            current.compact(ByteBuffer.allocate(0));
+        }
+    }
+
+    /** Forgets the loaded graph, so the next use reads the files again. */
+    static synchronized void invalidate() {
+        graph = null;
+    }
+
+    /** Rebuilds the base from the commit objects and removes the layer. */
+    static synchronized void rebuild() {
+        graph = null;
+        writeBase(build());
+        layerFile().delete();
+        /* Kept beside the graph by older versions. */
+        Utils.join(Repository.GITLET_DIR, Repository.COMMIT_GRAPH_LOOKUP_FILE).delete();
+    }
+
+    /** Returns the generation number of a commit with parents at PARENT and
+     *  PARENT2 in CURRENT. */
+    private static int generation(CommitGraph current, int parent, int parent2) {
+        return 1 + Math.max(parent == NONE ? 0 : current.generation(parent),
+                parent2 == NONE ? 0 : current.generation(parent2));
+    }
+
+    /** Appends RECORD to the layer file. The file is written anew, with the
+     *  records read from it, if it is missing, extends another base or ends
+     *  in a partial record. */
+    private void append(ByteBuffer record) {
+        File file = layerFile();
+        long expected = LAYER_HEADER_SIZE + (long) layerIds.size() * RECORD_SIZE;
+        if (file.length() == expected && !layerIds.isEmpty()) {
+            try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                /* One write of a whole record: readers ignore a partial one. */
+                while (record.hasRemaining()) {
+                    out.write(record, expected + record.position());
+                }
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e.getMessage());
+            }
+            return;
+        }
+        write(file, ByteBuffer.allocate(LAYER_HEADER_SIZE).putInt(LAYER_MAGIC).putInt(VERSION)
+                .putLong(nonce).flip(), layer.duplicate().clear(), record);
+    }
+
+    /** Writes the base and layer of this graph, followed by the record
+     *  ADDED if it is not empty, as a new base, and removes the layer. */
+    private void compact(ByteBuffer added) {
+        int count = count() + (added.hasRemaining() ? 1 : 0);
+        TreeMap<String, Integer> ids = new TreeMap<>(layerIds);
+        if (added.hasRemaining()) {
+            byte[] raw = new byte[ID_LENGTH];
+            added.get(0, raw);
+            ids.put(Utils.bytesToHex(raw), count());
+        }
+        ByteBuffer lookup = ByteBuffer.allocate(count * LOOKUP_SIZE);
+        int i = 0;
+        for (Map.Entry<String, Integer> entry : ids.entrySet()) {
+            byte[] raw = Utils.hexToBytes(entry.getKey());
+            for (; i < baseCount && compareLookup(i, raw) < 0; i += 1) {
+                lookup.put(data.slice(lookupBase + i * LOOKUP_SIZE, LOOKUP_SIZE));
+            }
+            lookup.put(raw).putInt(entry.getValue());
+        }
+        lookup.put(data.slice(lookupBase + i * LOOKUP_SIZE, (baseCount - i) * LOOKUP_SIZE));
+        write(baseFile(), header(count), data.slice(HEADER_SIZE, baseCount * RECORD_SIZE),
+                layer.duplicate().clear(), added, lookup.flip());
+        layerFile().delete();
+    }
+
+    /** Returns the graph of every commit object, built in memory. */
+    private static CommitGraph build() {
+        HashMap<String, Commit> commits = new HashMap<>();
+        for (String id : Commit.ids()) {
+            commits.put(id, Commit.load(id));
+        }
+        /* Order the commits so that every commit follows its parents. */
+        List<String> order = new ArrayList<>();
+        HashMap<String, Integer> positions = new HashMap<>();
+        for (String root : commits.keySet()) {
+            Deque<String> stack = new ArrayDeque<>();
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                String id = stack.peek();
+                if (positions.containsKey(id)) {
+                    stack.pop();
+                    continue;
+                }
+                Commit commit = commits.get(id);
+                boolean ready = true;
+                for (String parent : new String[] {commit.getParentReference(),
+                        commit.getParentReference2()}) {
+                    if (parent != null && commits.containsKey(parent)
+                            && !positions.containsKey(parent)) {
+                        stack.push(parent);
+                        ready = false;
+                    }
+                }
+                if (ready) {
+                    stack.pop();
+                    positions.put(id, order.size());
+                    order.add(id);
+                }
+            }
+        }
+
+        ByteBuffer data = ByteBuffer.allocate(HEADER_SIZE + order.size() * (RECORD_SIZE + LOOKUP_SIZE));
+        long nonce = data.put(header(order.size())).getLong(12);
+        int[] generations = new int[order.size()];
+        for (int i = 0; i < order.size(); i += 1) {
+            Commit commit = commits.get(order.get(i));
+            int parent = positions.getOrDefault(commit.getParentReference(), NONE);
+            int parent2 = positions.getOrDefault(commit.getParentReference2(), NONE);
+            generations[i] = 1 + Math.max(parent == NONE ? 0 : generations[parent],
+                    parent2 == NONE ? 0 : generations[parent2]);
+            data.put(record(order.get(i), parent, parent2, generations[i],
+                    commit.getTimeStamp().getTime(), commit.getTree()));
+        }
+        for (Map.Entry<String, Integer> entry : new TreeMap<>(positions).entrySet()) {
+            data.put(Utils.hexToBytes(entry.getKey())).putInt(entry.getValue());
+        }
+        return new CommitGraph(data, order.size(), nonce, ByteBuffer.allocate(0), new TreeMap<>());
+    }
+
+    /** Replaces the base file with BUILT, a graph without a layer. */
+    private static void writeBase(CommitGraph built) {
+        write(baseFile(), built.data.duplicate().clear());
+    }
+
+    private static File baseFile() {
+        return Utils.join(Repository.GITLET_DIR, Repository.COMMIT_GRAPH_FILE);
+    }
+
+    private static File layerFile() {
+        return Utils.join(Repository.GITLET_DIR, Repository.COMMIT_GRAPH_LAYER_FILE);
+    }
+
+    /** Replaces FILE with the concatenation of PARTS. */
+    private static void write(File file, ByteBuffer... parts) {
+        File temp = Utils.join(file.getParentFile(), file.getName() + ".tmp");
+        try {
+            try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                for (ByteBuffer part : parts) {
+                    while (part.hasRemaining()) {
+                        out.write(part);
+                    }
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+        } catch (IOException e) {
+            temp.delete();
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /** Maps the base file and reads the layer over it, or returns null if
+     *  the base is missing or malformed. */
+    private static CommitGraph open() {
+        File graphFile = baseFile();
+        if (!graphFile.isFile()) {
+            return null;
+        }
+        MappedByteBuffer data;
+        try (FileChannel channel = FileChannel.open(graphFile.toPath())) {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            return null;
+        }
+        if (data.limit() < HEADER_SIZE || data.getInt(0) != GRAPH_MAGIC
+                || data.getInt(4) != VERSION) {
+            return null;
+        }
+        int count = data.getInt(8);
+        if (data.limit() != HEADER_SIZE + (long) count * (RECORD_SIZE + LOOKUP_SIZE)) {
+            return null;
+        }
+        CommitGraph base = new CommitGraph(data, count, data.getLong(12), ByteBuffer.allocate(0),
+                new TreeMap<>());
+        return base.withLayer(readLayer(base.nonce));
+    }
+
+    /** Returns the records of the layer file written over the base NONCE,
+     *  or an empty buffer if there is no such layer. */
+    private static ByteBuffer readLayer(long nonce) {
+        File file = layerFile();
+        if (!file.isFile()) {
+            return ByteBuffer.allocate(0);
+        }
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            return ByteBuffer.allocate(0);
+        }
+        ByteBuffer layer = ByteBuffer.wrap(bytes);
+        if (bytes.length < LAYER_HEADER_SIZE || layer.getInt(0) != LAYER_MAGIC
+                || layer.getInt(4) != VERSION || layer.getLong(8) != nonce) {
+            return ByteBuffer.allocate(0);
+        }
+        int records = (bytes.length - LAYER_HEADER_SIZE) / RECORD_SIZE;
+        return layer.slice(LAYER_HEADER_SIZE, records * RECORD_SIZE);
+    }
+
+    /** Returns this base with the layer RECORDS after it, up to the
+     *  first one that is not a commit following from those before it. */
+    private CommitGraph withLayer(ByteBuffer records) {
+        TreeMap<String, Integer> ids = new TreeMap<>();
+        CommitGraph result = new CommitGraph(data, baseCount, nonce, records, ids);
+        int n = records.limit() / RECORD_SIZE;
+        for (int i = 0; i < n; i += 1) {
+            int position = baseCount + i;
+            int parent = result.parent(position);
+            int parent2 = result.parent2(position);
+            if (parent < NONE || parent >= position || parent2 < NONE || parent2 >= position
+                    || result.generation(position) != generation(result, parent, parent2)) {
+                break;
+            }
+            String id = result.id(position);
+            if (ids.containsKey(id) || position(id) != NONE) {
+                break;
+            }
+            ids.put(id, position);
+        }
+        return new CommitGraph(data, baseCount, nonce, records.slice(0, ids.size() * RECORD_SIZE), ids);
+    }
+
+    /** Returns true iff the commit PARENT exists but is not in CURRENT. */
+    private static boolean missing(CommitGraph current, String parent) {
+        return parent != null && current.position(parent) == NONE;
+    }
+
+    /** Returns the header of a base of COUNT commits, with a new nonce. */
+    private static ByteBuffer header(int count) {
+        return ByteBuffer.allocate(HEADER_SIZE).putInt(GRAPH_MAGIC).putInt(VERSION).putInt(count)
+                .putLong(ThreadLocalRandom.current().nextLong()).flip();
+    }
+
+    private static ByteBuffer record(String id, int parent, int parent2, int generation,
+                                     long time, String tree) {
+        return ByteBuffer.allocate(RECORD_SIZE).put(Utils.hexToBytes(id)).putInt(parent)
+                .putInt(parent2).putInt(generation).putLong(time)
+                .put(Utils.hexToBytes(tree)).flip();
+    }
+}
@@ -0,0 +1,321 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static gitlet.Utils.join;
+
+/** A long-running gitlet process that runs the commands of other gitlet
+ * processes, so scripts that run many commands pay for JVM startup, class
+ * loading and cold caches once.
+ *
+ * `gitlet daemon` listens on the Unix domain socket .gitlet/daemon.sock. While
+ * it runs, Main forwards each command to it instead of running the command
+ * itself: the client sends the arguments, and the daemon runs them through
+ * Main.run with System.out, System.err and System.in replaced by frames over
+ * the connection, ending with the exit status. Standard input is only read
+ * from the client when the command asks for it. Commands run one at a time,
+ * in the order they connect.
+ *
+ * Objects are named by their contents, so cached commits, trees and blobs
+ * never go stale. What can is the state read from the other files of
+ * .gitlet: the commit graph, the pack list and the stat cache. Before each
+ * command the daemon compares the size, modification time and file key of
+ * everything at the top of .gitlet and in its pack directory with how they
+ * were before its previous command, and drops those caches if anything
+ * changed since. The daemon's own commands keep those caches up to date as
+ * they write (CommitGraph.add and Pack.repack drop what they replace), so
+ * comparing with the state from before them costs at most one reload after
+ * a command that changed something, and never misses a change another
+ * process made while it ran.
+ *  @author Daniel Michles
+ */
+class Daemon {
+
+    /* Frames sent by the daemon: a type byte, then an int and, for output, that many bytes. */
+    private static final byte OUT = 1;
+    private static final byte ERR = 2;
+    /* Asks the client for up to the given number of bytes of its standard
+     * input; it answers with their count, -1 at end of input, and the bytes. */
+    private static final byte READ = 3;
+    private static final byte EXIT = 4;
+
+    /** Size of the buffers between the commands and the connection. */
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private static File socketFile() {
+        return join(Repository.GITLET_DIR, Repository.DAEMON_SOCKET_FILE);
+    }
+
+    /** Runs the commands of clients until the process is killed. */
+    static void serve() {
+        File socket = socketFile();
+        if (!Repository.GITLET_DIR.isDirectory()) {
+            throw Utils.error("Not in an initialized Gitlet directory.");
+        }
+        try (SocketChannel running = connect(socket)) {
+            if (running != null) {
+                throw Utils.error("A gitlet daemon is already running.");
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        /* Left behind by a daemon that did not shut down cleanly. */
+        socket.delete();
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket.toPath()));
+            socket.deleteOnExit();
+            System.out.println("Serving " + Repository.CWD);
+            String state = null;
+            while (true) {
+                try (SocketChannel client = server.accept()) {
+                    String current = state();
+                    if (!current.equals(state)) {
+                        invalidate();
+                    }
+                    /* Taken before the command, so that a change another process
+                     * makes while it runs is still seen by the next one. */
+                    state = current;
+                    if (!handle(client)) {
+                        state = null;
+                    }
+                } catch (IOException e) {
+                    /* The client went away mid-command: trust nothing it may have left half done. */
+                    state = null;
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /** Runs the command of CLIENT. Returns false if it failed unexpectedly,
+     *  which may have left the caches inconsistent with the files. */
+    private static boolean handle(SocketChannel client) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(client), BUFFER_SIZE));
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(client), BUFFER_SIZE));
+        String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i += 1) {
+            args[i] = in.readUTF();
+        }
+
+        PrintStream stdout = System.out;
+        PrintStream stderr = System.err;
+        InputStream stdin = System.in;
+        PrintStream clientOut = frames(out, OUT);
+        PrintStream clientErr = frames(out, ERR);
+        System.setOut(clientOut);
+        System.setErr(clientErr);
+        System.setIn(new ClientInputStream(in, out));
+        int status;
+        boolean ok = true;
+        try {
+            status = Main.run(args);
+        } catch (RuntimeException | Error e) {
+            e.printStackTrace();
+            status = 1;
+            ok = false;
+        } finally {
+            System.setOut(stdout);
+            System.setErr(stderr);
+            System.setIn(stdin);
+        }
+        clientOut.flush();
+        clientErr.flush();
+        out.writeByte(EXIT);
+        out.writeInt(status);
+        out.flush();
+        return ok;
+    }
+
+    /** Runs ARGS in the daemon of this repository, copying its output to
+     *  this process. Returns the exit status of the command, or null if no
+     *  daemon is running. */
+    static Integer forward(String[] args) {
+        SocketChannel channel;
+        try {
+            channel = connect(socketFile());
+        } catch (IOException e) {
+            return null;
+        }
+        if (channel == null) {
+            return null;
+        }
+        try (channel) {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE));
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+            out.writeInt(args.length);
+            for (String arg : args) {
+                out.writeUTF(arg);
+            }
+            out.flush();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (true) {
+                byte type = in.readByte();
+                int n = in.readInt();
+                switch (type) {
+                    case OUT:
+                    case ERR:
+                        byte[] data = in.readNBytes(n);
+                        (type == OUT ? System.out : System.err).write(data, 0, data.length);
+                        break;
+                    case READ:
+                        System.out.flush();
+                        int read = System.in.read(buffer, 0, Math.min(n, buffer.length));
+                        out.writeInt(read);
+                        if (read > 0) {
+                            out.write(buffer, 0, read);
+                        }
+                        out.flush();
+                        break;
+                    case EXIT:
+                        System.out.flush();
+                        System.err.flush();
+                        return n;
+                    default:
+                        throw new IOException("unknown frame " + type);
+                }
+            }
+        } catch (IOException e) {
+            throw Utils.error("Lost the connection to the gitlet daemon: %s", e.getMessage());
+        }
+    }
+
+    /** Returns a connection to the daemon listening on SOCKET, or null if
+     *  there is none. */
+    private static SocketChannel connect(File socket) throws IOException {
+        if (!socket.exists()) {
+            return null;
+        }
+        SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            channel.connect(UnixDomainSocketAddress.of(socket.toPath()));
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            return null;
+        }
+    }
+
+    /** Drops the caches of state held in the mutable files of .gitlet. */
+    private static void invalidate() {
+        CommitGraph.invalidate();
+        Pack.invalidate();
+        StatCache.invalidate();
+    }
+
+    /** Returns the size, modification time and file key of every file at the
+     *  top of .gitlet and in its pack directory. */
+    private static String state() throws IOException {
+        StringBuilder result = new StringBuilder();
+        for (File dir : new File[] {Repository.GITLET_DIR, Repository.PACK_DIR}) {
+            String[] names = dir.list();
+            if (names == null) {
+                continue;
+            }
+            Arrays.sort(names);
+            for (String name : names) {
+                /* The lock file is rewritten by every command that changes anything. */
+                if (name.equals(Repository.DAEMON_SOCKET_FILE) || name.equals(Repository.LOCK_FILE)) {
+                    continue;
+                }
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(join(dir, name).toPath(), BasicFileAttributes.class);
+                } catch (IOException e) {
+                    /* Removed since it was listed. */
+                    continue;
+                }
+                result.append(dir.getName()).append('/').append(name).append(' ')
+                        .append(attrs.size()).append(' ')
+                        .append(attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS)).append(' ')
+                        .append(attrs.fileKey()).append('\n');
+            }
+        }
+        return result.toString();
+    }
+
+    /** Returns a stream writing frames of type TYPE to OUT. */
+    private static PrintStream frames(DataOutputStream out, byte type) {
+        OutputStream frames = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                synchronized (out) {
+                    out.writeByte(type);
+                    out.writeInt(len);
+                    out.write(b, off, len);
+                }
+            }
+        };
+        return new PrintStream(new BufferedOutputStream(frames, BUFFER_SIZE), false, StandardCharsets.UTF_8);
+    }
+
+    /** The client's standard input, read as the command asks for it. */
+    private static class ClientInputStream extends InputStream {
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private boolean eof;
+
+        ClientInputStream(DataInputStream in, DataOutputStream out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (eof) {
+                return -1;
+            }
+            /* Output written so far goes out first, like a prompt would. */
+            System.out.flush();
+            System.err.flush();
+            synchronized (out) {
+                out.writeByte(READ);
+                out.writeInt(len);
+                out.flush();
+            }
+            int n = in.readInt();
+            if (n < 0) {
+                eof = true;
+                return -1;
+            }
+            in.readFully(b, off, n);
+            return n;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/** Binary deltas between two versions of a blob, used by pack files.
+ * A delta is the varint lengths of the base and the result followed by a
+ * sequence of instructions: COPY (offset, length) copies bytes from the base
+ * and INSERT (length, bytes) inserts literal bytes.
+ *  @author Daniel Michles
+ */
+class Delta {
+
+    /** Instruction copying a range of the base. */
+    private static final int COPY = 1;
+    /** Instruction inserting literal bytes. */
+    private static final int INSERT = 2;
+    /** Length of the base blocks indexed when searching for matches. */
+    private static final int BLOCK = 16;
+
+    /** Returns a delta that turns BASE into TARGET. */
+    static byte[] encode(byte[] base, byte[] target) {
+        HashMap<Integer, Integer> blocks = new HashMap<>();
+        for (int i = 0; i + BLOCK <= base.length; i += BLOCK) {
+            blocks.putIfAbsent(hash(base, i), i);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            Utils.writeVarint(out, base.length);
+            Utils.writeVarint(out, target.length);
+            int pending = 0;
+            int i = 0;
+            while (i + BLOCK <= target.length) {
+                Integer j = blocks.get(hash(target, i));
+                if (j == null || !Arrays.equals(base, j, j + BLOCK, target, i, i + BLOCK)) {
+                    i += 1;
+                    continue;
+                }
+                /* Grow the match backwards into the pending literal run and forwards. */
+                int start = i;
+                int from = j;
+                while (start > pending && from > 0 && target[start - 1] == base[from - 1]) {
+                    start -= 1;
+                    from -= 1;
+                }
+                int end = i + BLOCK;
+                int to = j + BLOCK;
+                while (end < target.length && to < base.length && target[end] == base[to]) {
+                    end += 1;
+                    to += 1;
+                }
+                insert(out, target, pending, start);
+                out.write(COPY);
+                Utils.writeVarint(out, from);
+                Utils.writeVarint(out, end - start);
+                i = end;
+                pending = end;
+            }
+            insert(out, target, pending, target.length);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /** Returns the result of applying DELTA to BASE. */
+    static byte[] apply(byte[] base, byte[] delta) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(delta);
+        if (Utils.readVarint(in) != base.length) {
+            throw new IOException("delta does not match its base");
+        }
+        byte[] result = new byte[(int) Utils.readVarint(in)];
+        int pos = 0;
+        int op;
+        while ((op = in.read()) >= 0) {
+            if (op == COPY) {
+                int from = (int) Utils.readVarint(in);
+                int len = (int) Utils.readVarint(in);
+                System.arraycopy(base, from, result, pos, len);
+                pos += len;
+            } else if (op == INSERT) {
+                int len = (int) Utils.readVarint(in);
+                if (in.readNBytes(result, pos, len) != len) {
+                    throw new IOException("truncated delta");
+                }
+                pos += len;
+            } else {
+                throw new IOException("corrupt delta");
+            }
+        }
+        if (pos != result.length) {
+            throw new IOException("truncated delta");
+        }
+        return result;
+    }
+
+    /** Writes an INSERT of TARGET[FROM..TO) to OUT, if the range is not empty. */
+    private static void insert(ByteArrayOutputStream out, byte[] target, int from, int to)
+            throws IOException {
+        if (from < to) {
+            out.write(INSERT);
+            Utils.writeVarint(out, to - from);
+            out.write(target, from, to - from);
+        }
+    }
+
+    /** Returns the hash of the BLOCK bytes of DATA starting at OFFSET. */
+    private static int hash(byte[] data, int offset) {
+        int h = 0;
+        for (int i = offset; i < offset + BLOCK; i += 1) {
+            h = 31 * h + data[i];
+        }
+        return h;
+    }
+}
@@ -0,0 +1,359 @@
+package gitlet;
+
+import java.io.BufferedReader;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/** A line diff of two texts, written in unified format.
+ *
+ * Each line is hashed once, into a number shared by equal lines of both
+ * texts, and the rest of the work compares those numbers. The texts are
+ * first split on patience anchors: lines that occur exactly once in each
+ * text, kept in the longest run that is in the same order in both. This
+ * lines up the structure (function headers, closing braces) that a plain
+ * shortest edit script tends to mismatch. The stretches between anchors, and
+ * texts without any, are diffed with Myers' O(ND) algorithm in its
+ * linear-space form, which recurses on the middle snake of the edit graph
+ * instead of remembering every path.
+ *
+ * A last line without a newline differs from the same line with one, and is
+ * followed by "\ No newline at end of file" in the output, as in diff -u.
+ *  @author Daniel Michles
+ */
+class Diff {
+
+    /** Number of unchanged lines shown around each change. */
+    private static final int CONTEXT = 3;
+
+    private final List<String> linesA;
+    private final List<String> linesB;
+    /* True iff the last line of A, or of B, has no newline */
+    private final boolean noNewlineA;
+    private final boolean noNewlineB;
+    private final int[] a;
+    private final int[] b;
+    /* deleted[i] is true iff line i of A is not in B's version */
+    private final boolean[] deleted;
+    /* inserted[j] is true iff line j of B is not in A's version */
+    private final boolean[] inserted;
+
+    private Diff(Text textA, Text textB) {
+        this.linesA = textA.lines;
+        this.linesB = textB.lines;
+        this.noNewlineA = textA.noNewline;
+        this.noNewlineB = textB.noNewline;
+        HashMap<String, Integer> numbers = new HashMap<>();
+        a = number(textA, numbers);
+        b = number(textB, numbers);
+        deleted = new boolean[a.length];
+        inserted = new boolean[b.length];
+        diff(0, a.length, 0, b.length);
+    }
+
+    /** Writes the diff of BEFORE, named NAMEA, and AFTER, named NAMEB, to OUT.
+     *  Either stream may be null for a file that does not exist. Writes
+     *  nothing if the texts have the same lines. */
+    static void write(String nameA, InputStream before, String nameB, InputStream after,
+                      Writer out) throws IOException {
+        Text textA = read(before);
+        Text textB = read(after);
+        String header = String.format("diff --gitlet %s %s%n--- %s%n+++ %s%n",
+                nameA, nameB, before == null ? "/dev/null" : nameA, after == null ? "/dev/null" : nameB);
+        if (isBinary(textA.lines) || isBinary(textB.lines)) {
+            if (!textA.lines.equals(textB.lines) || textA.noNewline != textB.noNewline) {
+                out.write(String.format("diff --gitlet %s %s%nBinary files differ%n", nameA, nameB));
+            }
+            return;
+        }
+        new Diff(textA, textB).writeHunks(header, out);
+    }
+
+    /** The lines of a text, and whether its last line lacks a newline. */
+    private static class Text {
+        private final List<String> lines = new ArrayList<>();
+        private boolean noNewline;
+    }
+
+    private static Text read(InputStream in) throws IOException {
+        Text text = new Text();
+        if (in == null) {
+            return text;
+        }
+        /* readLine drops the line ends, so remember the last character read. */
+        char[] last = new char[1];
+        Reader source = new FilterReader(new InputStreamReader(in, StandardCharsets.UTF_8)) {
+            @Override
+            public int read(char[] buffer, int offset, int length) throws IOException {
+                int n = super.read(buffer, offset, length);
+                if (n > 0) {
+                    last[0] = buffer[offset + n - 1];
+                }
+                return n;
+            }
+        };
+        BufferedReader reader = new BufferedReader(source, Blob.BUFFER_SIZE);
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            text.lines.add(line);
+        }
+        text.noNewline = !text.lines.isEmpty() && last[0] != '\n' && last[0] != '\r';
+        return text;
+    }
+
+    private static boolean isBinary(List<String> lines) {
+        for (String line : lines) {
+            if (line.indexOf('\0') >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns the numbers of the lines of TEXT, giving each distinct line a
+     *  new number in NUMBERS. A last line without a newline is numbered apart. */
+    private static int[] number(Text text, HashMap<String, Integer> numbers) {
+        List<String> lines = text.lines;
+        int[] result = new int[lines.size()];
+        for (int i = 0; i < result.length; i += 1) {
+            /* No line holds a newline, so this key cannot clash with one. */
+            String key = text.noNewline && i == result.length - 1 ? "\n" + lines.get(i) : lines.get(i);
+            Integer n = numbers.get(key);
+            if (n == null) {
+                n = numbers.size();
+                numbers.put(key, n);
+            }
+            result[i] = n;
+        }
+        return result;
+    }
+
+    /** Marks the deleted and inserted lines between A[ALO, AHI) and B[BLO, BHI). */
+    private void diff(int aLo, int aHi, int bLo, int bHi) {
+        while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+            aLo += 1;
+            bLo += 1;
+        }
+        while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+            aHi -= 1;
+            bHi -= 1;
+        }
+        if (aLo == aHi || bLo == bHi) {
+            for (int i = aLo; i < aHi; i += 1) {
+                deleted[i] = true;
+            }
+            for (int j = bLo; j < bHi; j += 1) {
+                inserted[j] = true;
+            }
+            return;
+        }
+        List<int[]> anchors = anchors(aLo, aHi, bLo, bHi);
+        if (anchors.isEmpty()) {
+            myers(aLo, aHi, bLo, bHi);
+            return;
+        }
+        int i = aLo;
+        int j = bLo;
+        for (int[] anchor : anchors) {
+            diff(i, anchor[0], j, anchor[1]);
+            i = anchor[0] + 1;
+            j = anchor[1] + 1;
+        }
+        diff(i, aHi, j, bHi);
+    }
+
+    /** Returns the patience anchors of A[ALO, AHI) and B[BLO, BHI) as (i, j)
+     *  pairs in increasing order: the longest chain of lines unique to both
+     *  ranges that appears in the same order in each. */
+    private List<int[]> anchors(int aLo, int aHi, int bLo, int bHi) {
+        /* For each line number: count in A, count in B, position in A, position in B */
+        HashMap<Integer, int[]> seen = new HashMap<>();
+        for (int i = aLo; i < aHi; i += 1) {
+            int[] s = seen.computeIfAbsent(a[i], k -> new int[4]);
+            s[0] += 1;
+            s[2] = i;
+        }
+        for (int j = bLo; j < bHi; j += 1) {
+            int[] s = seen.get(b[j]);
+            if (s != null) {
+                s[1] += 1;
+                s[3] = j;
+            }
+        }
+        List<int[]> unique = new ArrayList<>();
+        for (int i = aLo; i < aHi; i += 1) {
+            int[] s = seen.get(a[i]);
+            if (s[0] == 1 && s[1] == 1) {
+                unique.add(new int[] {i, s[3]});
+            }
+        }
+        /* Longest increasing run of B positions, by patience sorting. */
+        int[] tops = new int[unique.size()];
+        int[] previous = new int[unique.size()];
+        int piles = 0;
+        for (int n = 0; n < unique.size(); n += 1) {
+            int j = unique.get(n)[1];
+            int lo = 0;
+            int hi = piles;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (unique.get(tops[mid])[1] < j) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            previous[n] = lo > 0 ? tops[lo - 1] : -1;
+            tops[lo] = n;
+            if (lo == piles) {
+                piles += 1;
+            }
+        }
+        List<int[]> result = new ArrayList<>();
+        for (int n = piles > 0 ? tops[piles - 1] : -1; n >= 0; n = previous[n]) {
+            result.add(0, unique.get(n));
+        }
+        return result;
+    }
+
+    /** Marks the deleted and inserted lines between A[ALO, AHI) and
+     *  B[BLO, BHI), which are both non-empty and differ in their first and
+     *  last lines, by splitting at the middle snake. */
+    private void myers(int aLo, int aHi, int bLo, int bHi) {
+        int[] snake = middleSnake(aLo, aHi - aLo, bLo, bHi - bLo);
+        diff(aLo, aLo + snake[0], bLo, bLo + snake[1]);
+        diff(aLo + snake[2], aHi, bLo + snake[3], bHi);
+    }
+
+    /** Returns {x, y, u, v}: the middle snake of an optimal edit script
+     *  between the N lines of A from ALO and the M lines of B from BLO,
+     *  running from (x, y) to (u, v) relative to them. */
+    private int[] middleSnake(int aLo, int n, int bLo, int m) {
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        int max = (n + m + 1) / 2;
+        /* Furthest x reached on each diagonal, indexed by diagonal + max;
+         * backward diagonals count from the ends of the ranges. */
+        int[] forward = new int[2 * max + 2];
+        int[] backward = new int[2 * max + 2];
+        for (int d = 0; d <= max; d += 1) {
+            for (int k = -d; k <= d; k += 2) {
+                int i = k + max;
+                int x = k == -d || (k != d && forward[i - 1] < forward[i + 1])
+                        ? forward[i + 1] : forward[i - 1] + 1;
+                int y = x - k;
+                int startX = x;
+                int startY = y;
+                while (x < n && y < m && a[aLo + x] == b[bLo + y]) {
+                    x += 1;
+                    y += 1;
+                }
+                forward[i] = x;
+                int c = delta - k;
+                if (odd && c >= -(d - 1) && c <= d - 1 && x + backward[c + max] >= n) {
+                    return new int[] {startX, startY, x, y};
+                }
+            }
+            for (int c = -d; c <= d; c += 2) {
+                int i = c + max;
+                int x = c == -d || (c != d && backward[i - 1] < backward[i + 1])
+                        ? backward[i + 1] : backward[i - 1] + 1;
+                int y = x - c;
+                int startX = x;
+                int startY = y;
+                while (x < n && y < m && a[aLo + n - x - 1] == b[bLo + m - y - 1]) {
+                    x += 1;
+                    y += 1;
+                }
+                backward[i] = x;
+                int k = delta - c;
+                if (!odd && k >= -d && k <= d && x + forward[k + max] >= n) {
+                    return new int[] {n - x, m - y, n - startX, m - startY};
+                }
+            }
+        }
+        throw new IllegalStateException("no middle snake");
+    }
+
+    /** Writes HEADER and then the hunks of this diff to OUT, if there are any changes. */
+    private void writeHunks(String header, Writer out) throws IOException {
+        /* Changed blocks as {aStart, aEnd, bStart, bEnd} */
+        List<int[]> blocks = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (i < a.length || j < b.length) {
+            if (i < a.length && j < b.length && !deleted[i] && !inserted[j]) {
+                i += 1;
+                j += 1;
+                continue;
+            }
+            int[] block = {i, i, j, j};
+            while (i < a.length && deleted[i]) {
+                i += 1;
+            }
+            while (j < b.length && inserted[j]) {
+                j += 1;
+            }
+            block[1] = i;
+            block[3] = j;
+            blocks.add(block);
+        }
+        if (blocks.isEmpty()) {
+            return;
+        }
+        out.write(header);
+        int first = 0;
+        while (first < blocks.size()) {
+            int last = first;
+            while (last + 1 < blocks.size()
+                    && blocks.get(last + 1)[0] - blocks.get(last)[1] <= 2 * CONTEXT) {
+                last += 1;
+            }
+            int aStart = Math.max(0, blocks.get(first)[0] - CONTEXT);
+            int bStart = Math.max(0, blocks.get(first)[2] - CONTEXT);
+            int aEnd = Math.min(a.length, blocks.get(last)[1] + CONTEXT);
+            int bEnd = Math.min(b.length, blocks.get(last)[3] + CONTEXT);
+            out.write(String.format("@@ -%s +%s @@%n", range(aStart, aEnd), range(bStart, bEnd)));
+            int x = aStart;
+            int y = bStart;
+            for (int n = first; n <= last; n += 1) {
+                int[] block = blocks.get(n);
+                for (; x < block[0]; x += 1, y += 1) {
+                    writeLine(out, ' ', linesA, x, noNewlineA);
+                }
+                for (; x < block[1]; x += 1) {
+                    writeLine(out, '-', linesA, x, noNewlineA);
+                }
+                for (; y < block[3]; y += 1) {
+                    writeLine(out, '+', linesB, y, noNewlineB);
+                }
+            }
+            for (; x < aEnd; x += 1) {
+                writeLine(out, ' ', linesA, x, noNewlineA);
+            }
+            first = last + 1;
+        }
+    }
+
+    /** Writes line INDEX of LINES after MARK, and the no-newline marker after
+     *  the last line if NONEWLINE. */
+    private static void writeLine(Writer out, char mark, List<String> lines, int index,
+                                  boolean noNewline) throws IOException {
+        out.write(mark + lines.get(index) + System.lineSeparator());
+        if (noNewline && index == lines.size() - 1) {
+            out.write("\\ No newline at end of file" + System.lineSeparator());
+        }
+    }
+
+    /** Returns the unified-format range of lines [START, END). */
+    private static String range(int start, int end) {
+        int length = end - start;
+        return length == 0 ? start + ",0" : (start + 1) + "," + length;
+    }
+}
@@ -0,0 +1,21 @@
+package gitlet;
+
+/** General exception indicating a Gitlet error.  For fatal errors, the
+ *  result of .getMessage() is the error message to be printed.
+ *  @author P. N. Hilfinger
+ */
+class GitletException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    /** A GitletException with no message. */
+    GitletException() {
+        super();
+    }
+
+    /** A GitletException MSG as its message. */
+    GitletException(String msg) {
+        super(msg);
+    }
+
+}
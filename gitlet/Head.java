@@ -1,11 +1,28 @@
 package gitlet;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 
+/** The HEAD pointer: a symbolic ref to the current branch, whose front commit
+ * is the head commit. Saved as the text "ref: refs/heads/BRANCH" and a
+ * newline, replaced through a lock file (see Refs.writeLocked). Heads written
+ * by older versions, which also held a copy of the commit id, are still read:
+ * the magic bytes "GH", a version byte, the varint-length branch name and the
+ * raw commit id, or before that Java serialization.
+ */
 public class Head implements Serializable {
+    /* Pinned to the value of the original class so existing heads stay readable. */
+    private static final long serialVersionUID = -451558036646827710L;
+
+    private static final byte[] MAGIC = {'G', 'H'};
+    private static final int VERSION = 1;
+    private static final String SYMBOLIC_PREFIX = "ref: refs/heads/";
+
     private String branch;
-    private String commitReference;
 
     public String getBranch() {
         return branch;
@@ -15,22 +32,63 @@ public class Head implements Serializable {
         this.branch = branch;
     }
 
+    /* Returns the front commit of the current branch. */
     public String getCommitReference() {
-        return commitReference;
+        return Refs.resolve(branch);
     }
 
-    public void setCommitReference(String commitReference) {
-        this.commitReference = commitReference;
+    public static Head load(){
+        if (Batch.isActive()) {
+            return Batch.head();
+        }
+        return read();
     }
 
-    public static Head load(){
+    /* Reads the head from disk. */
+    static Head read() {
         File file = Utils.join(Repository.GITLET_DIR,Repository.HEAD_FILE);
-        Head head = Utils.readObject(file,Head.class);
+        byte[] data = Utils.readContents(file);
+        String text = new String(data, StandardCharsets.UTF_8);
+        if (text.startsWith(SYMBOLIC_PREFIX)) {
+            Head head = new Head();
+            head.branch = text.substring(SYMBOLIC_PREFIX.length()).trim();
+            return head;
+        }
+        if (Utils.isSerializedObject(data)) {
+            return Utils.deserialize(data, Head.class);
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            if (in.readByte() != MAGIC[0] || in.readByte() != MAGIC[1]
+                    || in.readUnsignedByte() != VERSION) {
+                throw new IllegalArgumentException("unknown head format");
+            }
+            Head head = new Head();
+            head.branch = Utils.readString(in);
+            return head;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("corrupt head: " + e.getMessage());
+        }
+    }
+
+    /* Returns a copy of this head. */
+    Head copy() {
+        Head head = new Head();
+        head.branch = branch;
         return head;
     }
 
+    /* Saves this head, or hands it to the running batch to save later. */
     public void save(){
+        if (Batch.isActive()) {
+            Batch.setHead(this);
+            return;
+        }
+        write();
+    }
+
+    /* Writes this head to disk. */
+    void write() {
         File file = Utils.join(Repository.GITLET_DIR,Repository.HEAD_FILE);
-        Utils.writeObject(file,this);
+        Refs.writeLocked(file, (SYMBOLIC_PREFIX + branch + "\n").getBytes(StandardCharsets.UTF_8));
     }
 }
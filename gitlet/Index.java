@@ -0,0 +1,209 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/** The staging area, kept in the binary file .gitlet/index.
+ * Files staged for addition are recorded as a path and the id of the blob
+ * already written to the object store; files staged for removal are recorded
+ * as a path with the removal flag set.
+ *
+ * The file is the header "INDX", version and entry count, then the entries
+ * sorted by path (path, flags byte, 20-byte blob id), then the SHA-1 of
+ * everything before it. It is replaced atomically by save().
+ *  @author Daniel Michles
+ */
+public class Index {
+
+    private static final int MAGIC = 0x494e4458; // "INDX"
+    private static final int VERSION = 1;
+    /** Flag marking an entry staged for removal. */
+    private static final int REMOVED = 1;
+
+    /* Files staged for addition: key is filename, value is the blob id */
+    private final TreeMap<String, String> staged = new TreeMap<>();
+    /* Files staged for removal */
+    private final TreeSet<String> removed = new TreeSet<>();
+
+    public TreeMap<String, String> getStaged() {
+        return staged;
+    }
+
+    public TreeSet<String> getRemoved() {
+        return removed;
+    }
+
+    /* Returns true iff nothing is staged for addition or removal. */
+    public boolean isEmpty() {
+        return staged.isEmpty() && removed.isEmpty();
+    }
+
+    /* Stages FILE for addition with contents ID, cancelling any staged removal. */
+    public void stage(String file, String id) {
+        removed.remove(file);
+        staged.put(file, id);
+    }
+
+    /* Stages FILE for removal, cancelling any staged addition. */
+    public void stageRemoval(String file) {
+        staged.remove(file);
+        removed.add(file);
+    }
+
+    public void clear() {
+        staged.clear();
+        removed.clear();
+    }
+
+    public static Index load() {
+        if (Batch.isActive()) {
+            return Batch.index();
+        }
+        return read();
+    }
+
+    /* Reads the index from disk. */
+    static Index read() {
+        Index index = new Index();
+        File file = Utils.join(Repository.GITLET_DIR, Repository.INDEX_FILE);
+        if (!file.isFile()) {
+            return index;
+        }
+        byte[] data = Utils.readContents(file);
+        int length = data.length - Utils.UID_LENGTH / 2;
+        if (length < 0 || !Arrays.equals(sha1(data, length), 0, Utils.UID_LENGTH / 2,
+                data, length, data.length)) {
+            throw Utils.error("The staging index is corrupt.");
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, length))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw Utils.error("The staging index has an unsupported format.");
+            }
+            int count = in.readInt();
+            byte[] id = new byte[Utils.UID_LENGTH / 2];
+            for (int i = 0; i < count; i += 1) {
+                String path = in.readUTF();
+                int flags = in.readUnsignedByte();
+                in.readFully(id);
+                if ((flags & REMOVED) != 0) {
+                    index.removed.add(path);
+                } else {
+                    index.staged.put(path, Utils.bytesToHex(id));
+                }
+            }
+        } catch (IOException e) {
+            throw Utils.error("The staging index is corrupt.");
+        }
+        return index;
+    }
+
+    /* Returns a copy of this index. */
+    Index copy() {
+        Index copy = new Index();
+        copy.staged.putAll(staged);
+        copy.removed.addAll(removed);
+        return copy;
+    }
+
+    /* Saves this index, or hands it to the running batch to save later. */
+    public void save() {
+        if (Batch.isActive()) {
+            Batch.setIndex(this);
+            return;
+        }
+        write();
+    }
+
+    /* Writes this index to disk, replacing the old one atomically. */
+    void write() {
+        File file = Utils.join(Repository.GITLET_DIR, Repository.INDEX_FILE);
+        File temp = Utils.join(Repository.GITLET_DIR, Repository.INDEX_FILE + ".tmp");
+        TreeMap<String, String> entries = new TreeMap<>(staged);
+        for (String path : removed) {
+            entries.put(path, null);
+        }
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            try (DataOutputStream out = new DataOutputStream(new DigestOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)), md))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(entries.size());
+                for (Map.Entry<String, String> entry : entries.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    if (entry.getValue() == null) {
+                        out.writeByte(REMOVED);
+                        out.write(new byte[Utils.UID_LENGTH / 2]);
+                    } else {
+                        out.writeByte(0);
+                        out.write(Utils.hexToBytes(entry.getValue()));
+                    }
+                }
+                out.flush();
+                out.write(md.digest());
+            }
+            Files.move(temp.toPath(), file.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+        } catch (IOException | NoSuchAlgorithmException e) {
+            temp.delete();
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /* Moves the contents of the stagingarea and stagingforremoval directories
+     * used by older versions of gitlet into the index, storing the staged
+     * copies in the object store. Returns the number of entries converted.
+     */
+    public static int upgrade() {
+        Index index = load();
+        int converted = 0;
+        List<String> added = Utils.plainFilenamesIn(Repository.STAGING_DIR);
+        if (added != null) {
+            for (String file : added) {
+                File f = Utils.join(Repository.STAGING_DIR, file);
+                String id = Blob.store(f);
+                index.stage(file, id);
+                f.delete();
+                converted += 1;
+            }
+            Repository.STAGING_DIR.delete();
+        }
+        List<String> removals = Utils.plainFilenamesIn(Repository.STAGING_FOR_REMOVAL_DIR);
+        if (removals != null) {
+            for (String file : removals) {
+                index.stageRemoval(file);
+                Utils.join(Repository.STAGING_FOR_REMOVAL_DIR, file).delete();
+                converted += 1;
+            }
+            Repository.STAGING_FOR_REMOVAL_DIR.delete();
+        }
+        index.save();
+        return converted;
+    }
+
+    private static byte[] sha1(byte[] data, int length) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            md.update(data, 0, length);
+            return md.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+}
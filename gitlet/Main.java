@@ -1,5 +1,8 @@
 package gitlet;
 
+import java.util.Arrays;
+import java.util.Set;
+
 /**
  * Driver class for Gitlet, a subset of the Git version-control system.
  *
@@ -7,11 +10,58 @@ package gitlet;
  */
 public class Main {
 
+    /** The commands that change the repository, which run holding the WriteLock. */
+    private static final Set<String> WRITE_COMMANDS = Set.of(
+            "add", "rm", "commit", "checkout", "branch", "reset", "merge",
+            "repack", "upgrade", "batch");
+
     /**
      * Usage: java gitlet.Main ARGS, where ARGS contains
      * <COMMAND> <OPERAND1> <OPERAND2> ...
      */
     public static void main(String[] args) {
+        if (args.length == 1 && args[0].equals("daemon")) {
+            System.exit(run(args));
+        }
+        /* Let a running daemon do the work, if there is one. */
+        Integer status = Daemon.forward(args);
+        if (status == null) {
+            status = run(args);
+        }
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    /** Runs the command ARGS in this process and returns its exit status. */
+    static int run(String[] args) {
+        try {
+            if (args.length > 0 && WRITE_COMMANDS.contains(args[0])
+                    && Repository.GITLET_DIR.isDirectory()) {
+                WriteLock.acquire();
+                try {
+                    dispatch(args);
+                } finally {
+                    WriteLock.release();
+                }
+            } else {
+                dispatch(args);
+            }
+        } catch (GitletException e) {
+            if (e.getMessage() != null && !e.getMessage().isEmpty()) {
+                System.out.println(e.getMessage());
+            }
+            return -1;
+        }
+        if (Boolean.getBoolean("gitlet.cacheStats")) {
+            System.err.println(Commit.CACHE.stats());
+            System.err.println(Commit.MANIFESTS.stats());
+            System.err.println(Blob.CACHE.stats());
+        }
+        return 0;
+    }
+
+    private static void dispatch(String[] args) {
         // TODO: what if args is empty?
         if (args.length == 0) {
             Utils.exitWithError("Must have at least one argument");
@@ -23,9 +73,10 @@ public class Main {
                 Repository.initCommand();
                 break;
             case "add":
-                validateNumArgs("add", args, 2);
-                // TODO: handle the `add [filename]` command
-                Repository.add(args[1]);
+                if (args.length < 2) {
+                    Utils.exitWithError("Invalid number of arguments for: add.");
+                }
+                Repository.add(Arrays.copyOfRange(args, 1, args.length));
                 break;
             // TODO: FILL THE REST IN
             case "commit":
@@ -46,6 +97,18 @@ public class Main {
                 validateNumArgs("find", args, 2);
                 Repository.find(args[1]);
                 break;
+            case "search":
+                if (args.length < 2) {
+                    Utils.exitWithError("Invalid number of arguments for: search.");
+                }
+                Repository.search(Arrays.copyOfRange(args, 1, args.length));
+                break;
+            case "diff":
+                if (args.length > 3) {
+                    Utils.exitWithError("Invalid number of arguments for: diff.");
+                }
+                Repository.diff(Arrays.copyOfRange(args, 1, args.length));
+                break;
             case "status":
                 Repository.status();
                 break;
@@ -76,6 +139,24 @@ public class Main {
                 validateNumArgs("mergebase",args,2);
                 Repository.mergebase(args[1]);
                 break;
+            case "repack":
+                validateNumArgs("repack", args, 1);
+                Repository.repack();
+                break;
+            case "upgrade":
+                validateNumArgs("upgrade", args, 1);
+                Repository.upgrade();
+                break;
+            case "batch":
+                if (args.length > 2) {
+                    Utils.exitWithError("Invalid number of arguments for: batch.");
+                }
+                Batch.run(args.length == 2 ? args[1] : null);
+                break;
+            case "daemon":
+                validateNumArgs("daemon", args, 1);
+                Daemon.serve();
+                break;
         }
     }
 
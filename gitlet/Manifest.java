@@ -0,0 +1,135 @@
+package gitlet;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/** The files of a commit: a read-only table from path to blob id.
+ *
+ * Paths are kept sorted in one array and interned, so the same path is one
+ * String however many commits hold it. The blob ids are packed back to back
+ * in a single byte array, ObjectId.LENGTH bytes each, instead of one hex
+ * String per file. Lookups binary-search the paths. Build one with Builder,
+ * or with Tree.flatten from a commit's tree.
+ *  @author Daniel Michles
+ */
+final class Manifest implements Iterable<Map.Entry<String, ObjectId>> {
+
+    /** The manifest with no files. */
+    static final Manifest EMPTY = new Manifest(new String[0], new byte[0]);
+
+    private final String[] paths;
+    private final byte[] ids;
+
+    private Manifest(String[] paths, byte[] ids) {
+        this.paths = paths;
+        this.ids = ids;
+    }
+
+    /** Returns the number of files. */
+    int size() {
+        return paths.length;
+    }
+
+    /** Returns the path of the I-th file in path order. */
+    String path(int i) {
+        return paths[i];
+    }
+
+    /** Returns the blob id of the I-th file in path order. */
+    ObjectId id(int i) {
+        return ObjectId.fromRaw(ids, i * ObjectId.LENGTH);
+    }
+
+    /** Returns true iff the I-th file has blob id ID. */
+    boolean idEquals(int i, ObjectId id) {
+        return id != null && id.equalsRaw(ids, i * ObjectId.LENGTH);
+    }
+
+    /** Returns the position of PATH in path order, or a negative number if
+     *  it is absent, as Arrays.binarySearch. */
+    int indexOf(String path) {
+        return Arrays.binarySearch(paths, path);
+    }
+
+    boolean contains(String path) {
+        return indexOf(path) >= 0;
+    }
+
+    /** Returns the blob id of PATH, or null if it is not in this manifest. */
+    ObjectId get(String path) {
+        int i = indexOf(path);
+        return i < 0 ? null : id(i);
+    }
+
+    /** Iterates over the (path, blob id) entries in path order. */
+    @Override
+    public Iterator<Map.Entry<String, ObjectId>> iterator() {
+        return new Iterator<>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < paths.length;
+            }
+
+            @Override
+            public Map.Entry<String, ObjectId> next() {
+                if (next >= paths.length) {
+                    throw new NoSuchElementException();
+                }
+                int i = next++;
+                return new AbstractMap.SimpleImmutableEntry<>(paths[i], id(i));
+            }
+        };
+    }
+
+    /** Returns the manifest holding FILES (path to hex blob id). */
+    static Manifest of(Map<String, String> files) {
+        Builder builder = new Builder(files.size());
+        files.keySet().stream().sorted()
+                .forEach(path -> builder.add(path, ObjectId.fromHex(files.get(path))));
+        return builder.build();
+    }
+
+    /** Builds a Manifest from files added in strictly increasing path order. */
+    static final class Builder {
+        private String[] paths;
+        private byte[] ids;
+        private int size;
+
+        Builder() {
+            this(16);
+        }
+
+        Builder(int capacity) {
+            paths = new String[Math.max(capacity, 1)];
+            ids = new byte[paths.length * ObjectId.LENGTH];
+        }
+
+        /** Adds PATH with blob id ID. PATH must follow every path added before. */
+        Builder add(String path, ObjectId id) {
+            if (size > 0 && paths[size - 1].compareTo(path) >= 0) {
+                throw new IllegalArgumentException("paths out of order: " + path);
+            }
+            if (size == paths.length) {
+                paths = Arrays.copyOf(paths, size * 2);
+                ids = Arrays.copyOf(ids, paths.length * ObjectId.LENGTH);
+            }
+            paths[size] = path.intern();
+            id.copyTo(ids, size * ObjectId.LENGTH);
+            size += 1;
+            return this;
+        }
+
+        Manifest build() {
+            if (size == 0) {
+                return EMPTY;
+            }
+            return new Manifest(Arrays.copyOf(paths, size),
+                    Arrays.copyOf(ids, size * ObjectId.LENGTH));
+        }
+    }
+}
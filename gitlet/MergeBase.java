@@ -0,0 +1,152 @@
+package gitlet;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+
+/** Finds the best common ancestors of two commits over the commit graph.
+ *
+ * Both commits are painted into a priority queue that always pops the commit
+ * with the highest generation number (then the latest time), so a commit is
+ * only popped after all of its descendants on either side. Each commit carries
+ * the sides it is reachable from. A commit reachable from both sides is a
+ * result, and its ancestors are marked stale so that they are never reported.
+ * The walk stops as soon as every queued commit is stale, rather than
+ * visiting all of history; a running count of the queued commits that are
+ * not stale tells when. Flags are kept only for the commits visited, so the
+ * cost follows the distance to the merge base, not the size of the history. If several results remain (criss-cross merges),
+ * those that are ancestors of another result are dropped.
+ *  @author Daniel Michles
+ */
+class MergeBase {
+
+    private static final int PARENT1 = 1;
+    private static final int PARENT2 = 2;
+    private static final int STALE = 4;
+    private static final int RESULT = 8;
+    /* The commit is in the queue; it is never in it twice. */
+    private static final int QUEUED = 16;
+
+    /** Returns the positions of the best common ancestors of the commits at
+     *  positions ONE and TWO in GRAPH, best first. The list is empty if the
+     *  commits share no history. */
+    static List<Integer> find(CommitGraph graph, int one, int two) {
+        List<Integer> result = new ArrayList<>();
+        if (one == two) {
+            result.add(one);
+            return result;
+        }
+        HashMap<Integer, Integer> flags = new HashMap<>();
+        PriorityQueue<Integer> queue = new PriorityQueue<>(order(graph));
+        flags.put(one, PARENT1 | QUEUED);
+        flags.put(two, PARENT2 | QUEUED);
+        queue.add(one);
+        queue.add(two);
+        /* Queued commits that are not stale */
+        int active = 2;
+
+        List<Integer> found = new ArrayList<>();
+        while (active > 0) {
+            int commit = queue.poll();
+            int flag = flags.get(commit) & ~QUEUED;
+            flags.put(commit, flag);
+            if ((flag & STALE) == 0) {
+                active -= 1;
+            }
+            int sides = flag & (PARENT1 | PARENT2 | STALE);
+            if (sides == (PARENT1 | PARENT2)) {
+                if ((flag & RESULT) == 0) {
+                    flags.put(commit, flag | RESULT);
+                    found.add(commit);
+                }
+                /* Ancestors of a common ancestor are never the best one. */
+                sides |= STALE;
+            }
+            for (int parent : new int[] {graph.parent(commit), graph.parent2(commit)}) {
+                if (parent == CommitGraph.NONE) {
+                    continue;
+                }
+                int old = flags.getOrDefault(parent, 0);
+                if ((old & sides) == sides) {
+                    continue;
+                }
+                int updated = old | sides;
+                if ((old & QUEUED) == 0) {
+                    queue.add(parent);
+                    updated |= QUEUED;
+                    if ((updated & STALE) == 0) {
+                        active += 1;
+                    }
+                } else if ((old & STALE) == 0 && (updated & STALE) != 0) {
+                    active -= 1;
+                }
+                flags.put(parent, updated);
+            }
+        }
+
+        for (int commit : found) {
+            if ((flags.get(commit) & STALE) == 0) {
+                result.add(commit);
+            }
+        }
+        if (result.size() > 1) {
+            result = removeRedundant(graph, result);
+        }
+        result.sort(order(graph));
+        return result;
+    }
+
+    /** Orders positions by descending generation, then descending time. */
+    private static Comparator<Integer> order(CommitGraph graph) {
+        return (a, b) -> {
+            int cmp = Integer.compare(graph.generation(b), graph.generation(a));
+            return cmp != 0 ? cmp : Long.compare(graph.time(b), graph.time(a));
+        };
+    }
+
+    /** Returns CANDIDATES without those that are ancestors of another candidate. */
+    private static List<Integer> removeRedundant(CommitGraph graph, List<Integer> candidates) {
+        List<Integer> result = new ArrayList<>();
+        for (int a : candidates) {
+            boolean redundant = false;
+            for (int b : candidates) {
+                if (a != b && isAncestor(graph, a, b)) {
+                    redundant = true;
+                    break;
+                }
+            }
+            if (!redundant) {
+                result.add(a);
+            }
+        }
+        return result;
+    }
+
+    /** Returns true iff the commit at ANCESTOR is an ancestor of the commit at
+     *  DESCENDANT. The walk never goes below ANCESTOR's generation. */
+    static boolean isAncestor(CommitGraph graph, int ancestor, int descendant) {
+        int floor = graph.generation(ancestor);
+        HashSet<Integer> visited = new HashSet<>();
+        Queue<Integer> queue = new ArrayDeque<>();
+        queue.add(descendant);
+        visited.add(descendant);
+        while (!queue.isEmpty()) {
+            int commit = queue.poll();
+            if (commit == ancestor) {
+                return true;
+            }
+            for (int parent : new int[] {graph.parent(commit), graph.parent2(commit)}) {
+                if (parent != CommitGraph.NONE && graph.generation(parent) >= floor
+                        && visited.add(parent)) {
+                    queue.add(parent);
+                }
+            }
+        }
+        return false;
+    }
+}
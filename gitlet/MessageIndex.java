@@ -0,0 +1,180 @@
+package gitlet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+
+/** An index of commit messages in .gitlet/search, used by find and search.
+ *
+ * Each key has its own posting file: the raw 20-byte ids of the commits it
+ * occurs in, appended as commits are made. A key is either a whole message
+ * (the exact-message table used by find) or a lower-cased word of a message
+ * (the inverted index used by search). Posting files are named by the SHA-1
+ * of their key and sharded like objects, so a lookup reads one small file
+ * whatever the length of the history.
+ *
+ * The index is built from all commits the first time it is needed, and
+ * kept current by add() afterwards.
+ *  @author Daniel Michles
+ */
+class MessageIndex {
+
+    private static final String MESSAGE_KEY = "message\0";
+    private static final String TOKEN_KEY = "token\0";
+    private static final int ID_LENGTH = Utils.UID_LENGTH / 2;
+
+    /** Returns the ids of the commits whose message is exactly MESSAGE, in
+     *  lexicographic order. */
+    static List<String> find(String message) {
+        ensureBuilt();
+        return new ArrayList<>(new TreeSet<>(postings(MESSAGE_KEY + message)));
+    }
+
+    /** Returns the ids of the commits whose message contains every word of
+     *  every one of TERMS, in lexicographic order. Words are compared ignoring
+     *  case. */
+    static List<String> search(String... terms) {
+        ensureBuilt();
+        List<String> words = new ArrayList<>();
+        for (String term : terms) {
+            words.addAll(tokens(term));
+        }
+        if (words.isEmpty()) {
+            return new ArrayList<>();
+        }
+        /* Intersect starting from the shortest posting list. */
+        words.sort(Comparator.comparingLong(word -> postingFile(TOKEN_KEY + word).length()));
+        Set<String> result = postings(TOKEN_KEY + words.get(0));
+        for (int i = 1; i < words.size() && !result.isEmpty(); i += 1) {
+            result.retainAll(postings(TOKEN_KEY + words.get(i)));
+        }
+        return new ArrayList<>(new TreeSet<>(result));
+    }
+
+    /** Records COMMIT, which must have been saved, in the index. Does nothing
+     *  if the index has not been built yet, since building it will read COMMIT. */
+    static void add(Commit commit) {
+        if (!Repository.SEARCH_DIR.isDirectory()) {
+            return;
+        }
+        byte[] id = Utils.hexToBytes(commit.getId());
+        for (String key : keys(commit.getMessage())) {
+            File file = postingFile(key);
+            file.getParentFile().mkdirs();
+            try (FileOutputStream out = new FileOutputStream(file, true)) {
+                out.write(id);
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e.getMessage());
+            }
+        }
+    }
+
+    /** Builds the index from every commit, replacing any existing index.
+     *  Returns the number of commits indexed. */
+    static int rebuild() {
+        HashMap<String, List<String>> postings = new HashMap<>();
+        List<String> ids = Commit.ids();
+        for (String id : ids) {
+            for (String key : keys(Commit.loadHeader(id).getMessage())) {
+                postings.computeIfAbsent(key, k -> new ArrayList<>()).add(id);
+            }
+        }
+        File temp = Utils.join(Repository.GITLET_DIR, Repository.SEARCH_DIR.getName() + ".tmp");
+        delete(temp);
+        temp.mkdir();
+        for (Map.Entry<String, List<String>> entry : postings.entrySet()) {
+            byte[] data = new byte[entry.getValue().size() * ID_LENGTH];
+            int offset = 0;
+            for (String id : entry.getValue()) {
+                System.arraycopy(Utils.hexToBytes(id), 0, data, offset, ID_LENGTH);
+                offset += ID_LENGTH;
+            }
+            File file = Repository.objectFile(temp, Utils.sha1(entry.getKey()));
+            file.getParentFile().mkdirs();
+            Utils.writeContents(file, data);
+        }
+        delete(Repository.SEARCH_DIR);
+        try {
+            Files.move(temp.toPath(), Repository.SEARCH_DIR.toPath(), ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        return ids.size();
+    }
+
+    private static void ensureBuilt() {
+        if (Repository.SEARCH_DIR.isDirectory()) {
+            return;
+        }
+        /* Building replaces the directory commits append to, so it takes the
+         * WriteLock even when called by a command that only reads. */
+        WriteLock.acquire();
+        try {
+            if (!Repository.SEARCH_DIR.isDirectory()) {
+                rebuild();
+            }
+        } finally {
+            WriteLock.release();
+        }
+    }
+
+    /** Returns the index keys of a commit with the given MESSAGE. */
+    private static Set<String> keys(String message) {
+        Set<String> keys = new LinkedHashSet<>();
+        keys.add(MESSAGE_KEY + message);
+        for (String word : tokens(message)) {
+            keys.add(TOKEN_KEY + word);
+        }
+        return keys;
+    }
+
+    /** Returns the lower-cased words of TEXT: its maximal runs of letters and digits. */
+    private static List<String> tokens(String text) {
+        List<String> words = new ArrayList<>();
+        for (String word : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+
+    private static File postingFile(String key) {
+        return Repository.objectFile(Repository.SEARCH_DIR, Utils.sha1(key));
+    }
+
+    /** Returns the ids in the posting list of KEY, without duplicates. */
+    private static Set<String> postings(String key) {
+        Set<String> ids = new LinkedHashSet<>();
+        File file = postingFile(key);
+        if (!file.isFile()) {
+            return ids;
+        }
+        byte[] data = Utils.readContents(file);
+        for (int offset = 0; offset + ID_LENGTH <= data.length; offset += ID_LENGTH) {
+            ids.add(Utils.bytesToHex(data, offset, ID_LENGTH));
+        }
+        return ids;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            Arrays.stream(children).forEach(MessageIndex::delete);
+        }
+        file.delete();
+    }
+}
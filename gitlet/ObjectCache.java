@@ -0,0 +1,96 @@
+package gitlet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/** A size-bounded cache of objects read from the object store, keyed by id,
+ * that evicts the least recently used entries first. Each entry has a
+ * weight (for example a number of bytes) and the total weight never exceeds
+ * the capacity. Cached values are shared, so they must be immutable.
+ * Counts hits, misses and evictions so its effect can be measured.
+ *  @author Daniel Michles
+ */
+class ObjectCache<V> {
+
+    private final String name;
+    private final long capacity;
+    private final ToLongFunction<V> weigher;
+    /* Entries in access order: the first entry is the least recently used */
+    private final LinkedHashMap<String, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    ObjectCache(String name, long capacity, ToLongFunction<V> weigher) {
+        this.name = name;
+        this.capacity = capacity;
+        this.weigher = weigher;
+    }
+
+    /** Returns the value for KEY, computing it with LOADER and caching it if
+     *  it is not cached. LOADER runs outside the cache's lock. */
+    V get(String key, Function<String, V> loader) {
+        V value = getIfPresent(key);
+        if (value == null) {
+            value = loader.apply(key);
+            put(key, value);
+        }
+        return value;
+    }
+
+    /** Returns the value cached for KEY, or null. */
+    synchronized V getIfPresent(String key) {
+        V value = entries.get(key);
+        if (value != null) {
+            hits += 1;
+        } else {
+            misses += 1;
+        }
+        return value;
+    }
+
+    /** Caches VALUE under KEY, evicting least recently used entries as needed.
+     *  Values heavier than the whole cache are not cached. */
+    synchronized void put(String key, V value) {
+        long w = weigher.applyAsLong(value);
+        if (w > capacity) {
+            return;
+        }
+        V old = entries.put(key, value);
+        if (old != null) {
+            weight -= weigher.applyAsLong(old);
+        }
+        weight += w;
+        Iterator<Map.Entry<String, V>> eldest = entries.entrySet().iterator();
+        while (weight > capacity && eldest.hasNext()) {
+            Map.Entry<String, V> entry = eldest.next();
+            weight -= weigher.applyAsLong(entry.getValue());
+            eldest.remove();
+            evictions += 1;
+        }
+    }
+
+    /** Drops every entry. */
+    synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    /** Returns a one-line summary of the cache's counters. */
+    synchronized String stats() {
+        return String.format("%s cache: %d hits, %d misses, %d evictions, %d entries (%d of %d)",
+                name, hits, misses, evictions, entries.size(), weight, capacity);
+    }
+}
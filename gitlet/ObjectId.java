@@ -0,0 +1,106 @@
+package gitlet;
+
+/** The 20-byte SHA-1 id of a stored object, as a value.
+ *
+ * Held as two longs and an int rather than a 40-character hex string, so an
+ * id takes a fixed 32 bytes of heap and compares without decoding.
+ *  @author Daniel Michles
+ */
+final class ObjectId implements Comparable<ObjectId> {
+
+    /** Length of an id in bytes. */
+    static final int LENGTH = Utils.UID_LENGTH / 2;
+
+    private final long w1;
+    private final long w2;
+    private final int w3;
+
+    private ObjectId(long w1, long w2, int w3) {
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+    }
+
+    /** Returns the id whose hexadecimal form is HEX. */
+    static ObjectId fromHex(String hex) {
+        return fromRaw(Utils.hexToBytes(hex), 0);
+    }
+
+    /** Returns the id held in the LENGTH bytes of RAW starting at OFFSET. */
+    static ObjectId fromRaw(byte[] raw, int offset) {
+        return new ObjectId(readLong(raw, offset), readLong(raw, offset + 8),
+                (int) readInt(raw, offset + 16));
+    }
+
+    /** Writes the LENGTH raw bytes of this id into DEST starting at OFFSET. */
+    void copyTo(byte[] dest, int offset) {
+        writeLong(dest, offset, w1);
+        writeLong(dest, offset + 8, w2);
+        for (int i = 0; i < 4; i += 1) {
+            dest[offset + 16 + i] = (byte) (w3 >>> (24 - 8 * i));
+        }
+    }
+
+    /** Returns the raw bytes of this id. */
+    byte[] toRaw() {
+        byte[] raw = new byte[LENGTH];
+        copyTo(raw, 0);
+        return raw;
+    }
+
+    /** Returns true iff this id equals the LENGTH bytes of RAW starting at OFFSET. */
+    boolean equalsRaw(byte[] raw, int offset) {
+        return w1 == readLong(raw, offset) && w2 == readLong(raw, offset + 8)
+                && w3 == (int) readInt(raw, offset + 16);
+    }
+
+    /** Returns the 40-digit hexadecimal form of this id. */
+    @Override
+    public String toString() {
+        return Utils.bytesToHex(toRaw());
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof ObjectId)) {
+            return false;
+        }
+        ObjectId other = (ObjectId) obj;
+        return w1 == other.w1 && w2 == other.w2 && w3 == other.w3;
+    }
+
+    @Override
+    public int hashCode() {
+        /* The bits of a SHA-1 are already uniformly distributed. */
+        return (int) w1;
+    }
+
+    /** Orders ids as their raw bytes compare unsigned, which is also the
+     *  order of their hexadecimal forms. */
+    @Override
+    public int compareTo(ObjectId other) {
+        int cmp = Long.compareUnsigned(w1, other.w1);
+        if (cmp == 0) {
+            cmp = Long.compareUnsigned(w2, other.w2);
+        }
+        if (cmp == 0) {
+            cmp = Integer.compareUnsigned(w3, other.w3);
+        }
+        return cmp;
+    }
+
+    private static long readLong(byte[] raw, int offset) {
+        return (readInt(raw, offset) << 32) | readInt(raw, offset + 4);
+    }
+
+    private static long readInt(byte[] raw, int offset) {
+        return ((raw[offset] & 0xffL) << 24) | ((raw[offset + 1] & 0xffL) << 16)
+                | ((raw[offset + 2] & 0xffL) << 8) | (raw[offset + 3] & 0xffL);
+    }
+
+    private static void writeLong(byte[] dest, int offset, long value) {
+        for (int i = 0; i < 8; i += 1) {
+            dest[offset + i] = (byte) (value >>> (56 - 8 * i));
+        }
+    }
+}
@@ -0,0 +1,648 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static gitlet.Utils.*;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+
+/** A pack file holding many commits, trees and blobs, written by `gitlet repack`.
+ *
+ * pack-ID.pack is the header "PACK", version, object count, then one entry
+ * per object: a type byte, the 20-byte base id for deltas, and a deflate
+ * stream of the commit's or tree's encoding, the blob's contents, the chunk
+ * list of a chunked blob (see Blob) or the delta (see Delta). It ends with the SHA-1 of everything before it, which is ID.
+ *
+ * pack-ID.idx is the header "PIDX", version, object count, a 256-entry fan-out
+ * table of cumulative counts by first id byte, the sorted 20-byte ids, the
+ * 8-byte pack offset of each id, and the type byte of each id. Readers map it
+ * with FileChannel.map and binary-search it.
+ *  @author Daniel Michles
+ */
+class Pack {
+
+    /** Entry holding a serialized commit. */
+    static final byte COMMIT = 1;
+    /** Entry holding a whole blob. */
+    static final byte BLOB = 2;
+    /** Entry holding a blob as a delta against another blob. */
+    static final byte BLOB_DELTA = 3;
+    /** Entry holding an encoded tree. */
+    static final byte TREE = 4;
+    /** Entry holding the chunk list of a chunked blob (see Blob), whose chunks are BLOB entries. */
+    static final byte CHUNKS = 5;
+
+    private static final byte[] PACK_MAGIC = {'P', 'A', 'C', 'K'};
+    private static final byte[] INDEX_MAGIC = {'P', 'I', 'D', 'X'};
+    private static final int VERSION = 1;
+    /** Length of a raw object id. */
+    static final int ID_LENGTH = UID_LENGTH / 2;
+    private static final int FANOUT_OFFSET = 12;
+    private static final int IDS_OFFSET = FANOUT_OFFSET + 256 * 4;
+    /** Blobs larger than this are never delta-compressed, as that needs them in memory. */
+    private static final int MAX_DELTA_SIZE = 8 * 1024 * 1024;
+    /** Longest chain of deltas a blob may sit at the end of. */
+    private static final int MAX_DEPTH = 10;
+
+    /** The packs of this repository, opened on first use. */
+    private static List<Pack> packs;
+
+    private final File packFile;
+    private final File indexFile;
+    private final FileChannel channel;
+    private final MappedByteBuffer index;
+    private final int count;
+
+    private Pack(File packFile, File indexFile) throws IOException {
+        this.packFile = packFile;
+        this.indexFile = indexFile;
+        try (FileChannel idx = FileChannel.open(indexFile.toPath())) {
+            index = idx.map(FileChannel.MapMode.READ_ONLY, 0, idx.size());
+        }
+        for (int i = 0; i < INDEX_MAGIC.length; i += 1) {
+            if (index.get(i) != INDEX_MAGIC[i]) {
+                throw new IOException("not a pack index: " + indexFile);
+            }
+        }
+        if (index.getInt(4) != VERSION) {
+            throw new IOException("unsupported pack index version: " + indexFile);
+        }
+        count = index.getInt(8);
+        channel = new RandomAccessFile(packFile, "r").getChannel();
+    }
+
+    /** Returns the packs of this repository. */
+    private static synchronized List<Pack> all() {
+        if (packs == null) {
+            packs = new ArrayList<>();
+            List<String> files = plainFilenamesIn(Repository.PACK_DIR);
+            if (files != null) {
+                for (String name : files) {
+                    if (!name.endsWith(".idx")) {
+                        continue;
+                    }
+                    String base = name.substring(0, name.length() - ".idx".length());
+                    try {
+                        packs.add(new Pack(join(Repository.PACK_DIR, base + ".pack"),
+                                join(Repository.PACK_DIR, name)));
+                    } catch (IOException e) {
+                        throw new IllegalArgumentException(e.getMessage());
+                    }
+                }
+            }
+        }
+        return packs;
+    }
+
+    /** Closes the open packs, so the next use lists the pack directory again. */
+    static synchronized void invalidate() {
+        if (packs != null) {
+            for (Pack pack : packs) {
+                pack.close();
+            }
+            packs = null;
+        }
+    }
+
+    /** Returns true iff the object ID is stored in a pack. */
+    static boolean contains(String id) {
+        return locate(id) != null;
+    }
+
+    /** Returns the contents of the packed object ID (the serialized bytes of
+     *  a commit, or a blob's contents), or null if ID is not packed. */
+    static byte[] read(String id) {
+        try (InputStream in = open(id)) {
+            return in == null ? null : in.readAllBytes();
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /** Returns a stream over the contents of the packed object ID, or null if
+     *  ID is not packed. Whole objects are inflated as they are read. */
+    static InputStream open(String id) throws IOException {
+        Location location = locate(id);
+        if (location == null) {
+            return null;
+        }
+        return location.pack.open(location.position);
+    }
+
+    /** Returns the entries of the chunk list packed under ID, or null if ID
+     *  is not packed as a chunk list. */
+    static byte[] readChunkList(String id) throws IOException {
+        Location location = locate(id);
+        if (location == null || location.pack.type(location.position) != CHUNKS) {
+            return null;
+        }
+        try (InputStream in = location.pack.inflate(location.pack.offset(location.position) + 1)) {
+            return in.readAllBytes();
+        }
+    }
+
+    /** Returns the ids of all packed objects of type TYPE. */
+    static List<String> ids(byte type) {
+        List<String> result = new ArrayList<>();
+        for (Pack pack : all()) {
+            for (int i = 0; i < pack.count; i += 1) {
+                if (pack.type(i) == type) {
+                    result.add(pack.id(i));
+                }
+            }
+        }
+        return result;
+    }
+
+    /** A packed object: the pack holding it and its position in that pack's index. */
+    private static class Location {
+        private final Pack pack;
+        private final int position;
+
+        Location(Pack pack, int position) {
+            this.pack = pack;
+            this.position = position;
+        }
+    }
+
+    /** Returns where the object ID is packed, or null. */
+    private static Location locate(String id) {
+        if (!Repository.isObjectId(id)) {
+            return null;
+        }
+        byte[] raw = hexToBytes(id);
+        for (Pack pack : all()) {
+            int position = pack.find(raw);
+            if (position >= 0) {
+                return new Location(pack, position);
+            }
+        }
+        return null;
+    }
+
+    /** Returns the index position of the raw id ID, or -1. */
+    private int find(byte[] id) {
+        int first = id[0] & 0xff;
+        int lo = first == 0 ? 0 : index.getInt(FANOUT_OFFSET + (first - 1) * 4);
+        int hi = index.getInt(FANOUT_OFFSET + first * 4) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compare(mid, id);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /** Compares the id at index position POSITION with the raw id ID. */
+    private int compare(int position, byte[] id) {
+        int base = IDS_OFFSET + position * ID_LENGTH;
+        for (int i = 0; i < ID_LENGTH; i += 1) {
+            int cmp = (index.get(base + i) & 0xff) - (id[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    private String id(int position) {
+        byte[] raw = new byte[ID_LENGTH];
+        index.get(IDS_OFFSET + position * ID_LENGTH, raw);
+        return bytesToHex(raw);
+    }
+
+    private long offset(int position) {
+        return index.getLong(IDS_OFFSET + count * ID_LENGTH + position * 8);
+    }
+
+    private byte type(int position) {
+        return index.get(IDS_OFFSET + count * (ID_LENGTH + 8) + position);
+    }
+
+    /** Returns a stream over the contents of the object at index POSITION. */
+    private InputStream open(int position) throws IOException {
+        long offset = offset(position);
+        byte type = type(position);
+        if (type == CHUNKS) {
+            return Blob.reassemble(inflate(offset + 1), -1);
+        }
+        if (type != BLOB_DELTA) {
+            return inflate(offset + 1);
+        }
+        String id = id(position);
+        byte[] data = Blob.CACHE.getIfPresent(id);
+        if (data == null) {
+            ByteBuffer base = ByteBuffer.allocate(ID_LENGTH);
+            channel.read(base, offset + 1);
+            String baseId = bytesToHex(base.array());
+            byte[] baseData = resolve(baseId);
+            byte[] delta;
+            try (InputStream in = inflate(offset + 1 + ID_LENGTH)) {
+                delta = in.readAllBytes();
+            }
+            data = Delta.apply(baseData, delta);
+            Blob.CACHE.put(id, data);
+        }
+        return new ByteArrayInputStream(data);
+    }
+
+    /** Returns the contents of the delta base ID, through the blob cache, since
+     *  the same bases are read again for every delta in a chain. */
+    private static byte[] resolve(String id) throws IOException {
+        byte[] data = Blob.CACHE.getIfPresent(id);
+        if (data == null) {
+            data = read(id);
+            if (data == null) {
+                throw new IOException("missing delta base " + id);
+            }
+            Blob.CACHE.put(id, data);
+        }
+        return data;
+    }
+
+    /** Returns a stream inflating the deflate stream starting at OFFSET. */
+    private InputStream inflate(long offset) {
+        return new InflaterInputStream(new BufferedInputStream(
+                new ChannelInputStream(channel, offset), Blob.BUFFER_SIZE));
+    }
+
+    private void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            /* Ignore: the pack is being discarded. */
+        }
+    }
+
+    /** Reads a FileChannel from a given position with positional reads, so
+     *  several streams may share the channel. */
+    private static class ChannelInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+
+        ChannelInputStream(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) <= 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = channel.read(ByteBuffer.wrap(b, off, len), position);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+    }
+
+    /** Counts the bytes written through it. */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count += 1;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /* WRITING PACKS */
+
+    /** Writes every commit reachable from a branch or HEAD, every tree and
+     *  blob they reference and every staged blob into a single new pack,
+     *  followed by whatever else the older packs hold, then deletes the older
+     *  packs and the loose copies of the packed objects. Returns the number of
+     *  objects packed. */
+    static int repack() {
+        List<String> commits = reachableCommits();
+        /* Group blob versions by path, newest first, so each version can be
+         * stored as a delta against the next-newer one. Trees already seen are
+         * not walked again, so unchanged directories cost nothing. */
+        LinkedHashMap<String, List<String>> versions = new LinkedHashMap<>();
+        HashSet<String> seen = new HashSet<>();
+        List<String> trees = new ArrayList<>();
+        for (String id : commits) {
+            collect(Commit.load(id).getTree(), "", trees, versions, seen);
+        }
+        /* Staged blobs are not in any commit yet, but the next one needs them. */
+        for (Map.Entry<String, String> staged : Index.load().getStaged().entrySet()) {
+            if (seen.add(staged.getValue())) {
+                versions.computeIfAbsent(staged.getKey(), k -> new ArrayList<>()).add(0, staged.getValue());
+            }
+        }
+        /* Chunked blobs are packed as their chunk lists, followed by the
+         * chunks they share, each once. */
+        LinkedHashMap<String, byte[]> chunkLists = new LinkedHashMap<>();
+        List<String> chunks = new ArrayList<>();
+        try {
+            for (List<String> blobs : versions.values()) {
+                for (String id : blobs) {
+                    byte[] list = Blob.readChunkList(id);
+                    if (list == null) {
+                        continue;
+                    }
+                    chunkLists.put(id, list);
+                    for (String chunk : Blob.chunkIds(list)) {
+                        if (seen.add(chunk)) {
+                            chunks.add(chunk);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        /* Objects of the older packs that nothing above reaches, such as the
+         * commits of a reset branch, are carried over as they are rather than
+         * lost with their packs. */
+        HashSet<String> reached = new HashSet<>(commits);
+        reached.addAll(seen);
+        LinkedHashMap<String, Byte> unreached = new LinkedHashMap<>();
+        for (Pack pack : all()) {
+            for (int i = 0; i < pack.count; i += 1) {
+                String id = pack.id(i);
+                if (!reached.contains(id)) {
+                    unreached.putIfAbsent(id, pack.type(i));
+                }
+            }
+        }
+
+        Repository.PACK_DIR.mkdir();
+        File temp = join(Repository.PACK_DIR, "pack.tmp");
+        TreeMap<String, long[]> entries = new TreeMap<>();
+        byte[] checksum;
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            try (DigestOutputStream digest = new DigestOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp), Blob.BUFFER_SIZE), md);
+                 CountingOutputStream out = new CountingOutputStream(digest)) {
+                DataOutputStream header = new DataOutputStream(out);
+                header.write(PACK_MAGIC);
+                header.writeInt(VERSION);
+                header.writeInt(commits.size() + seen.size() + unreached.size());
+                for (String id : commits) {
+                    entries.put(id, new long[] {out.count, COMMIT});
+                    out.write(COMMIT);
+                    deflate(out, new ByteArrayInputStream(Commit.load(id).encode()));
+                }
+                for (String id : trees) {
+                    entries.put(id, new long[] {out.count, TREE});
+                    out.write(TREE);
+                    deflate(out, new ByteArrayInputStream(Tree.load(id).encode()));
+                }
+                for (Map.Entry<String, byte[]> list : chunkLists.entrySet()) {
+                    entries.put(list.getKey(), new long[] {out.count, CHUNKS});
+                    out.write(CHUNKS);
+                    deflate(out, new ByteArrayInputStream(list.getValue()));
+                }
+                for (String id : chunks) {
+                    entries.put(id, new long[] {out.count, BLOB});
+                    out.write(BLOB);
+                    try (InputStream in = Blob.open(id)) {
+                        deflate(out, in);
+                    }
+                }
+                HashMap<String, Integer> depth = new HashMap<>();
+                for (List<String> blobs : versions.values()) {
+                    String baseId = null;
+                    byte[] base = null;
+                    for (String id : blobs) {
+                        if (chunkLists.containsKey(id)) {
+                            continue;
+                        }
+                        byte[] data;
+                        try (InputStream in = Blob.open(id)) {
+                            data = in.readNBytes(MAX_DELTA_SIZE + 1);
+                        }
+                        if (data.length > MAX_DELTA_SIZE) {
+                            entries.put(id, new long[] {out.count, BLOB});
+                            out.write(BLOB);
+                            try (InputStream in = Blob.open(id)) {
+                                deflate(out, in);
+                            }
+                            baseId = null;
+                            base = null;
+                            continue;
+                        }
+                        byte[] delta = null;
+                        if (base != null && depth.get(baseId) < MAX_DEPTH) {
+                            delta = Delta.encode(base, data);
+                            if (delta.length > data.length / 2) {
+                                delta = null;
+                            }
+                        }
+                        if (delta != null) {
+                            entries.put(id, new long[] {out.count, BLOB_DELTA});
+                            out.write(BLOB_DELTA);
+                            out.write(hexToBytes(baseId));
+                            deflate(out, new ByteArrayInputStream(delta));
+                            depth.put(id, depth.get(baseId) + 1);
+                        } else {
+                            entries.put(id, new long[] {out.count, BLOB});
+                            out.write(BLOB);
+                            deflate(out, new ByteArrayInputStream(data));
+                            depth.put(id, 0);
+                        }
+                        baseId = id;
+                        base = data;
+                    }
+                }
+                for (Map.Entry<String, Byte> entry : unreached.entrySet()) {
+                    String id = entry.getKey();
+                    byte type = entry.getValue() == BLOB_DELTA ? BLOB : entry.getValue();
+                    entries.put(id, new long[] {out.count, type});
+                    out.write(type);
+                    if (type == COMMIT) {
+                        deflate(out, new ByteArrayInputStream(Commit.load(id).encode()));
+                    } else if (type == TREE) {
+                        deflate(out, new ByteArrayInputStream(Tree.load(id).encode()));
+                    } else if (type == CHUNKS) {
+                        deflate(out, new ByteArrayInputStream(readChunkList(id)));
+                    } else {
+                        try (InputStream in = open(id)) {
+                            deflate(out, in);
+                        }
+                    }
+                }
+                out.flush();
+                checksum = md.digest();
+                out.write(checksum);
+            }
+        } catch (IOException | NoSuchAlgorithmException e) {
+            temp.delete();
+            throw new IllegalArgumentException(e.getMessage());
+        }
+
+        String name = "pack-" + bytesToHex(checksum);
+        File packFile = join(Repository.PACK_DIR, name + ".pack");
+        File indexFile = join(Repository.PACK_DIR, name + ".idx");
+        try {
+            Files.move(temp.toPath(), packFile.toPath(), ATOMIC_MOVE);
+            writeIndex(entries, checksum, indexFile);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+
+        /* The new pack holds everything the old ones did: drop them and the loose copies. */
+        synchronized (Pack.class) {
+            for (Pack pack : all()) {
+                if (!pack.packFile.equals(packFile)) {
+                    pack.close();
+                    pack.indexFile.delete();
+                    pack.packFile.delete();
+                }
+            }
+            packs = null;
+        }
+        for (Map.Entry<String, long[]> entry : entries.entrySet()) {
+            File dir = entry.getValue()[1] == COMMIT ? Repository.COMMITS_DIR
+                    : entry.getValue()[1] == TREE ? Repository.TREES_DIR : Repository.COMMITTED_DIR;
+            File loose = Repository.objectFile(dir, entry.getKey());
+            if (loose.delete()) {
+                loose.getParentFile().delete();
+            }
+        }
+        return entries.size();
+    }
+
+    /** Adds the tree ROOT, whose path is PREFIX, and its subtrees to TREES and
+     *  the blobs they hold to VERSIONS under their paths, skipping ids in SEEN
+     *  and adding the others to it. */
+    private static void collect(String root, String prefix, List<String> trees,
+                                Map<String, List<String>> versions, HashSet<String> seen) {
+        if (root.equals(Tree.EMPTY_ID) || !seen.add(root)) {
+            return;
+        }
+        trees.add(root);
+        for (Map.Entry<String, Tree.Entry> entry : Tree.load(root).getEntries().entrySet()) {
+            String path = prefix + entry.getKey();
+            String id = entry.getValue().getId().toString();
+            if (entry.getValue().isTree()) {
+                collect(id, path + "/", trees, versions, seen);
+            } else if (seen.add(id)) {
+                versions.computeIfAbsent(path, k -> new ArrayList<>()).add(id);
+            }
+        }
+    }
+
+    /** Returns the ids of all commits reachable from a branch or HEAD, newest first. */
+    private static List<String> reachableCommits() {
+        List<String> result = new ArrayList<>();
+        HashSet<String> visited = new HashSet<>();
+        Queue<String> queue = new ArrayDeque<>();
+        queue.add(Head.load().getCommitReference());
+        queue.addAll(Refs.all().values());
+        while (!queue.isEmpty()) {
+            String id = queue.poll();
+            if (!visited.add(id)) {
+                continue;
+            }
+            result.add(id);
+            Commit commit = Commit.load(id);
+            if (commit.getParentReference() != null) {
+                queue.add(commit.getParentReference());
+            }
+            if (commit.getParentReference2() != null) {
+                queue.add(commit.getParentReference2());
+            }
+        }
+        return result;
+    }
+
+    /** Writes the deflated contents of IN to OUT, leaving OUT open. */
+    private static void deflate(OutputStream out, InputStream in) throws IOException {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            /* finish() rather than close() so the pack stream stays open. */
+            DeflaterOutputStream stream = new DeflaterOutputStream(out, deflater, Blob.BUFFER_SIZE);
+            in.transferTo(stream);
+            stream.finish();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /** Writes the index of a pack holding ENTRIES (id to {offset, type}) and
+     *  ending with CHECKSUM into TARGET. */
+    private static void writeIndex(TreeMap<String, long[]> entries, byte[] checksum, File target)
+            throws IOException {
+        int[] fanout = new int[256];
+        for (String id : entries.keySet()) {
+            fanout[Integer.parseInt(id.substring(0, 2), 16)] += 1;
+        }
+        for (int i = 1; i < fanout.length; i += 1) {
+            fanout[i] += fanout[i - 1];
+        }
+        File temp = join(target.getParentFile(), target.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.write(INDEX_MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (int count : fanout) {
+                out.writeInt(count);
+            }
+            for (String id : entries.keySet()) {
+                out.write(hexToBytes(id));
+            }
+            for (long[] entry : entries.values()) {
+                out.writeLong(entry[0]);
+            }
+            for (long[] entry : entries.values()) {
+                out.writeByte((int) entry[1]);
+            }
+            out.write(checksum);
+        }
+        Files.move(temp.toPath(), target.toPath(), ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,275 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/** The branches of the repository, each naming its front commit.
+ *
+ * A branch is a loose ref, the file .gitlet/refs/heads/NAME holding the
+ * commit id in hex and a newline, or an entry of .gitlet/packed-refs; a
+ * loose ref overrides a packed one. Moving a branch rewrites only its own
+ * file: the new contents are written to NAME.lock, created exclusively so
+ * that two processes cannot update the same branch at once, which is then
+ * renamed over NAME.
+ *
+ * packed-refs holds the branches that have not moved since the last
+ * `gitlet repack`. It is the header "PREF", version and count, then one
+ * record per branch sorted by name (the file offset of the name and the raw
+ * 20-byte commit id), then the names, each a 2-byte length and UTF-8 bytes.
+ * Readers map it and binary-search the records, so looking up one branch
+ * does not read the others.
+ *
+ * Branches kept by older versions in the single file .gitlet/branch (see
+ * Branch) are still read, under both kinds of ref, until `gitlet upgrade`
+ * or `gitlet repack` moves them into packed-refs.
+ *  @author Daniel Michles
+ */
+class Refs {
+
+    private static final byte[] PACKED_MAGIC = {'P', 'R', 'E', 'F'};
+    private static final int PACKED_VERSION = 1;
+    private static final int PACKED_HEADER_SIZE = 12;
+    private static final int PACKED_RECORD_SIZE = 4 + ObjectId.LENGTH;
+    static final String LOCK_SUFFIX = ".lock";
+
+    /** Returns the front commit of BRANCH, or null if there is no such branch. */
+    static String resolve(String branch) {
+        if (Batch.isActive()) {
+            String id = Batch.ref(branch);
+            if (id != null) {
+                return id;
+            }
+        }
+        if (!isValidName(branch)) {
+            return null;
+        }
+        File loose = Utils.join(Repository.REFS_DIR, branch);
+        if (loose.isFile()) {
+            return new String(Utils.readContents(loose), StandardCharsets.US_ASCII).trim();
+        }
+        String packed = resolvePacked(branch);
+        if (packed != null) {
+            return packed;
+        }
+        return legacy().get(branch);
+    }
+
+    static boolean exists(String branch) {
+        return resolve(branch) != null;
+    }
+
+    /** Returns every branch and its front commit, sorted by name. */
+    static TreeMap<String, String> all() {
+        TreeMap<String, String> refs = legacy();
+        refs.putAll(readPacked());
+        readLoose(Repository.REFS_DIR, "", refs);
+        if (Batch.isActive()) {
+            refs.putAll(Batch.refs());
+        }
+        return refs;
+    }
+
+    /** Points BRANCH at the commit ID, or has the running batch do it when it saves. */
+    static void update(String branch, String id) {
+        if (Batch.isActive()) {
+            Batch.setRef(branch, id);
+            return;
+        }
+        write(branch, id);
+    }
+
+    /** Points BRANCH at the commit ID on disk. */
+    static void write(String branch, String id) {
+        if (!isValidName(branch)) {
+            throw Utils.error("Invalid branch name: %s", branch);
+        }
+        writeLocked(Utils.join(Repository.REFS_DIR, branch),
+                (id + "\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /** Returns true iff NAME can name a branch: one or more '/'-separated
+     *  parts, none empty, "." or "..", or ending in ".lock". */
+    static boolean isValidName(String name) {
+        if (name.isEmpty() || name.indexOf('\0') >= 0 || name.indexOf('\\') >= 0) {
+            return false;
+        }
+        for (String part : name.split("/", -1)) {
+            if (part.isEmpty() || part.equals(".") || part.equals("..") || part.endsWith(LOCK_SUFFIX)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Writes DATA to TARGET through TARGET.lock, which is created exclusively
+     *  and then renamed over TARGET. Fails if another process holds the lock. */
+    static void writeLocked(File target, byte[] data) {
+        target.getParentFile().mkdirs();
+        File lock = new File(target.getPath() + LOCK_SUFFIX);
+        try {
+            Files.write(lock.toPath(), data, CREATE_NEW, WRITE);
+        } catch (FileAlreadyExistsException e) {
+            throw Utils.error("Unable to lock %s: another gitlet process is updating it."
+                    + " If none is running, delete %s.",
+                    Repository.GITLET_DIR.toPath().relativize(target.toPath()), lock);
+        } catch (IOException e) {
+            lock.delete();
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        try {
+            Files.move(lock.toPath(), target.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+        } catch (IOException e) {
+            lock.delete();
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /** Moves every branch into packed-refs, including those of the old branch
+     *  file, and deletes the loose refs that did not move meanwhile. Returns
+     *  the number of branches packed. */
+    static int pack() {
+        TreeMap<String, String> refs = all();
+        ByteBuffer names = ByteBuffer.allocate(refs.keySet().stream()
+                .mapToInt(name -> 2 + name.getBytes(StandardCharsets.UTF_8).length).sum());
+        ByteBuffer records = ByteBuffer.allocate(PACKED_HEADER_SIZE + refs.size() * PACKED_RECORD_SIZE);
+        records.put(PACKED_MAGIC).putInt(PACKED_VERSION).putInt(refs.size());
+        for (Map.Entry<String, String> ref : refs.entrySet()) {
+            byte[] name = ref.getKey().getBytes(StandardCharsets.UTF_8);
+            records.putInt(records.capacity() + names.position());
+            records.put(Utils.hexToBytes(ref.getValue()));
+            names.putShort((short) name.length).put(name);
+        }
+        byte[] data = new byte[records.capacity() + names.capacity()];
+        System.arraycopy(records.array(), 0, data, 0, records.capacity());
+        System.arraycopy(names.array(), 0, data, records.capacity(), names.capacity());
+        writeLocked(Utils.join(Repository.GITLET_DIR, Repository.PACKED_REFS_FILE), data);
+
+        for (Map.Entry<String, String> ref : refs.entrySet()) {
+            File loose = Utils.join(Repository.REFS_DIR, ref.getKey());
+            File lock = new File(loose.getPath() + LOCK_SUFFIX);
+            if (!loose.isFile()) {
+                continue;
+            }
+            try {
+                Files.createFile(lock.toPath());
+            } catch (IOException e) {
+                /* Being updated: leave it loose. */
+                continue;
+            }
+            String id = new String(Utils.readContents(loose), StandardCharsets.US_ASCII).trim();
+            if (id.equals(ref.getValue())) {
+                loose.delete();
+            }
+            lock.delete();
+            File dir = loose.getParentFile();
+            while (!dir.equals(Repository.REFS_DIR) && dir.delete()) {
+                dir = dir.getParentFile();
+            }
+        }
+        Utils.join(Repository.GITLET_DIR, Repository.BRANCH_FILE).delete();
+        return refs.size();
+    }
+
+    /** Returns the commit of BRANCH in packed-refs, or null. */
+    private static String resolvePacked(String branch) {
+        MappedByteBuffer packed = mapPacked();
+        if (packed == null) {
+            return null;
+        }
+        int lo = 0;
+        int hi = packed.getInt(8) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = packedName(packed, mid).compareTo(branch);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return packedId(packed, mid);
+            }
+        }
+        return null;
+    }
+
+    private static TreeMap<String, String> readPacked() {
+        TreeMap<String, String> refs = new TreeMap<>();
+        MappedByteBuffer packed = mapPacked();
+        if (packed != null) {
+            for (int i = 0; i < packed.getInt(8); i += 1) {
+                refs.put(packedName(packed, i), packedId(packed, i));
+            }
+        }
+        return refs;
+    }
+
+    /** Returns packed-refs mapped into memory, or null if there is none. */
+    private static MappedByteBuffer mapPacked() {
+        File file = Utils.join(Repository.GITLET_DIR, Repository.PACKED_REFS_FILE);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            MappedByteBuffer packed = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            for (int i = 0; i < PACKED_MAGIC.length; i += 1) {
+                if (packed.get(i) != PACKED_MAGIC[i]) {
+                    throw Utils.error("packed-refs is corrupt.");
+                }
+            }
+            if (packed.getInt(4) != PACKED_VERSION) {
+                throw Utils.error("packed-refs has an unsupported format.");
+            }
+            return packed;
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    private static String packedName(MappedByteBuffer packed, int i) {
+        int offset = packed.getInt(PACKED_HEADER_SIZE + i * PACKED_RECORD_SIZE);
+        byte[] name = new byte[packed.getShort(offset) & 0xffff];
+        packed.get(offset + 2, name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    private static String packedId(MappedByteBuffer packed, int i) {
+        byte[] raw = new byte[ObjectId.LENGTH];
+        packed.get(PACKED_HEADER_SIZE + i * PACKED_RECORD_SIZE + 4, raw);
+        return Utils.bytesToHex(raw);
+    }
+
+    /** Adds the loose refs under DIR, whose names start with PREFIX, to REFS. */
+    private static void readLoose(File dir, String prefix, TreeMap<String, String> refs) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = prefix + file.getName();
+            if (file.isDirectory()) {
+                readLoose(file, name + "/", refs);
+            } else if (!name.endsWith(LOCK_SUFFIX)) {
+                refs.put(name, new String(Utils.readContents(file), StandardCharsets.US_ASCII).trim());
+            }
+        }
+    }
+
+    /** Returns the branches of the branch file of older versions, if there is one. */
+    private static TreeMap<String, String> legacy() {
+        File file = Utils.join(Repository.GITLET_DIR, Repository.BRANCH_FILE);
+        return file.isFile() ? new TreeMap<>(Branch.read().getBranch()) : new TreeMap<>();
+    }
+}
@@ -1,8 +1,28 @@
 package gitlet;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
 
 import static gitlet.Utils.*;
 
@@ -24,11 +44,11 @@ public class Repository {
      */
     public static final File GITLET_DIR = join(CWD, ".gitlet");
     /**
-     * The .gitlet/stagingArea directory.
+     * The .gitlet/stagingArea directory, used by older versions in place of the index.
      */
     public static final File STAGING_DIR = join(GITLET_DIR, "stagingarea");
     /**
-     * The .gitlet/stagingforremoval directory.
+     * The .gitlet/stagingforremoval directory, used by older versions in place of the index.
      */
     public static final File STAGING_FOR_REMOVAL_DIR = join(GITLET_DIR, "stagingforremoval");
     /**
@@ -39,10 +59,54 @@ public class Repository {
      * The .gitlet/commits directory.
      */
     public static final File COMMITS_DIR = join(GITLET_DIR, "commits");
+    /**
+     * The .gitlet/trees directory, holding the tree object of each committed directory.
+     */
+    public static final File TREES_DIR = join(GITLET_DIR, "trees");
+    /**
+     * The .gitlet/pack directory, holding pack files written by repack.
+     */
+    public static final File PACK_DIR = join(GITLET_DIR, "pack");
+    /**
+     * The .gitlet/search directory, holding the commit message index.
+     */
+    public static final File SEARCH_DIR = join(GITLET_DIR, "search");
+
+    /**
+     * Length of the subdirectory names objects are sharded into, as in
+     * .gitlet/commits/ab/cdef....
+     */
+    static final int FANOUT_LENGTH = 2;
+
+    /**
+     * Shortest abbreviation of a commit id accepted by checkout and reset.
+     */
+    static final int MIN_ABBREV_LENGTH = 4;
 
     public static final String BRANCH_FILE = "branch";
 
     public static final String HEAD_FILE = "head";
+
+    public static final String STAT_CACHE_FILE = "statcache";
+
+    public static final String INDEX_FILE = "index";
+
+    public static final String COMMIT_GRAPH_FILE = "commit-graph";
+
+    public static final String COMMIT_GRAPH_LOOKUP_FILE = "commit-graph-lookup";
+
+    public static final String COMMIT_GRAPH_LAYER_FILE = "commit-graph-layer";
+
+    public static final String DAEMON_SOCKET_FILE = "daemon.sock";
+
+    public static final String PACKED_REFS_FILE = "packed-refs";
+
+    public static final String LOCK_FILE = "lock";
+
+    /**
+     * The loose refs: one file per branch holding its front commit id.
+     */
+    public static final File REFS_DIR = join(GITLET_DIR, "refs", "heads");
     /* TODO: fill in the rest of this class. */
 
     public static void initCommand() {
@@ -51,204 +115,297 @@ public class Repository {
             return;
         }
         GITLET_DIR.mkdir();
-        STAGING_DIR.mkdir();
         COMMITS_DIR.mkdir();
         COMMITTED_DIR.mkdir();
-        STAGING_FOR_REMOVAL_DIR.mkdir();
+        TREES_DIR.mkdir();
+        new Index().save();
 
         /* Create initial commit and hash it */
         Commit initCommit = new Commit();
         String hashName = initCommit.sha1();
         /* Serialize the initial commit */
         initCommit.save();
-        /* Create reference objects to track branch and HEAD */
-
+        /* Create the master branch and point HEAD at it */
+        REFS_DIR.mkdirs();
+        Refs.update("master", hashName);
         Head head = new Head();
         head.setBranch("master");
-        head.setCommitReference(hashName);
-        Branch branch = new Branch();
-        branch.getBranch().put("master", hashName);
-
-        /* Serialize branch and head */
-        branch.save();
         head.save();
+        CommitGraph.add(initCommit);
+        SEARCH_DIR.mkdir();
+        MessageIndex.add(initCommit);
     }
 
-    public static void add(String fileName) {
-        /* Check if file fileName exists */
-        File file = join(CWD, fileName);
-        if (!file.exists()) {
-            System.out.println(String.format("File %s does not exit", fileName));
-            return;
-        }
-
-        /* The file will no longer be staged for removal (see gitlet rm), if it was at the time of the add command. */
-        List<String> list = plainFilenamesIn(STAGING_FOR_REMOVAL_DIR);
-        if (list != null && list.contains(fileName)) {
-            File f = join(STAGING_FOR_REMOVAL_DIR, fileName);
-            f.delete();
+    /* Stages the files NAMES. Each name is a file, a directory, standing for every file under it,
+    or a glob pattern matched against the paths of all working files ("*" stays within a directory,
+    "**" crosses directories). If any name matches nothing, nothing is staged. The files are hashed,
+    and their blobs stored where missing, in parallel; the index is saved once.
+     */
+    public static void add(String... names) {
+        TreeSet<String> selected = new TreeSet<>();
+        List<String> workingFiles = null;
+        for (String name : names) {
+            String path = workingPath(name);
+            File file = join(CWD, path);
+            if (path.equals(GITLET_DIR.getName()) || path.startsWith(GITLET_DIR.getName() + "/")) {
+                System.out.println(String.format("File %s does not exit", path));
+                return;
+            }
+            if (isGlob(name)) {
+                if (workingFiles == null) {
+                    workingFiles = workingFiles();
+                }
+                PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + path);
+                boolean matched = false;
+                for (String working : workingFiles) {
+                    if (matcher.matches(Path.of(working))) {
+                        selected.add(working);
+                        matched = true;
+                    }
+                }
+                if (!matched) {
+                    System.out.println(String.format("File %s does not exit", path));
+                    return;
+                }
+            } else if (file.isDirectory()) {
+                List<String> under = workingFiles(file, path.isEmpty() ? "" : path + "/");
+                if (under.isEmpty()) {
+                    System.out.println(String.format("File %s does not exit", path));
+                    return;
+                }
+                selected.addAll(under);
+            } else if (file.isFile()) {
+                selected.add(path);
+            } else {
+                System.out.println(String.format("File %s does not exit", path));
+                return;
+            }
         }
 
-        /* Retrieve head object containing references to last commit */
-        Head head = Head.load();
-        //TO DO check if number of commits is greater than 2, this still works, just performs unnecessary checks
-        /* Retrieve last commit from reference file */
-        Commit commit = Commit.load(head.getCommitReference());
-        /* Check if last commit contains fileName */
-        if (commit.getMap().containsKey(fileName)) {
-            File file1 = join(CWD, fileName);
-            String fileHash = sha1(readContentsAsString(file1));
-            /* Check if hashes are the same */
-            if (fileHash.equals(commit.getMap().get(fileName))) {
-                File file2 = join(STAGING_DIR, fileName);
-                /* Delete filename file if it exists in the staging area */
-                if (file2.exists()) {
-                    file2.delete();
+        /* Hash the files, writing the blobs not yet in the object store */
+        List<String> paths = new ArrayList<>(selected);
+        String[] ids = new String[paths.size()];
+        if (paths.size() <= 1) {
+            for (int i = 0; i < paths.size(); i += 1) {
+                try {
+                    ids[i] = StatCache.store(join(CWD, paths.get(i)), paths.get(i));
+                } catch (IllegalArgumentException e) {
+                    throw Utils.error("Could not add %s: %s", paths.get(i), e.getMessage());
+                }
+            }
+        } else {
+            ForkJoinPool pool = new ForkJoinPool(WORKER_THREADS);
+            try {
+                List<Future<?>> hashes = new ArrayList<>();
+                for (int i = 0; i < paths.size(); i += 1) {
+                    int n = i;
+                    hashes.add(pool.submit(() -> {
+                        ids[n] = StatCache.store(join(CWD, paths.get(n)), paths.get(n));
+                    }));
                 }
+                for (int i = 0; i < hashes.size(); i += 1) {
+                    try {
+                        hashes.get(i).get();
+                    } catch (ExecutionException e) {
+                        throw Utils.error("Could not add %s: %s", paths.get(i), failure(e));
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
                 return;
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+        StatCache.save();
+
+        /* Retrieve the files of the last commit through the head */
+        Manifest committed = Commit.load(Head.load().getCommitReference()).getManifest();
+        Index index = Index.load();
+        for (int i = 0; i < paths.size(); i += 1) {
+            String path = paths.get(i);
+            /* The file will no longer be staged for removal (see gitlet rm), if it was at the time of the add command. */
+            index.getRemoved().remove(path);
+            /* If the file is identical to the version in the last commit, it is not staged */
+            int position = committed.indexOf(path);
+            if (position >= 0 && committed.idEquals(position, ObjectId.fromHex(ids[i]))) {
+                index.getStaged().remove(path);
+            } else {
+                index.stage(path, ids[i]);
             }
         }
+        index.save();
+    }
 
-        /* Copy fileName to Staging Area  */
-        File stagedFile = join(STAGING_DIR, fileName);
-        copyFile(file, stagedFile);
+    /* Returns true iff NAME has glob metacharacters. */
+    private static boolean isGlob(String name) {
+        for (char c : "*?[{".toCharArray()) {
+            if (name.indexOf(c) >= 0) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public static void commit(String message) {
-        if (Utils.plainFilenamesIn(STAGING_DIR).isEmpty() && Utils.plainFilenamesIn(STAGING_FOR_REMOVAL_DIR).isEmpty()) {
+        if (Index.load().isEmpty()) {
             System.out.println("No changes added to the commit.");
             return;
         }
         /* Retrieve head object containing references to last commit */
         Head head = Head.load();
-        Branch branch = Branch.load();
         /* Retrieve last commit from reference file */
-        Commit commit = Commit.load(head.getCommitReference());
-        /* Populate message, timestamp and parent reference fields */
-        commit.setMessage(message);
-        commit.setTimeStamp(new Date());
-        commit.setParentReference(head.getCommitReference());
-        commit.setParentReference2(null);
+        Commit parent = Commit.load(head.getCommitReference());
 
         /* Go through staging areas and do appropriate operations */
-        commit = commitFileOps(commit);
-
-        /* Hash the commit and update pointers */
-        String hashName = sha1(commit.toString());
-        head.setCommitReference(hashName);
-        branch.getBranch().put(head.getBranch(), hashName);
-
-        /* Serialize pointer objects */
-        branch.save();
-        head.save();
+        String tree = commitTree(parent);
+        /* Populate message, timestamp and parent reference fields */
+        Commit commit = new Commit(message, new Date(), tree, head.getCommitReference(), null);
 
-        /* Serialize the commit object */
+        /* Serialize the commit object and record it in the commit graph */
         commit.save();
+        CommitGraph.add(commit);
+        MessageIndex.add(commit);
+
+        /* Move the current branch to the new commit; only then is the staging area cleared, so
+        it survives a failed update */
+        Refs.update(head.getBranch(), commit.getId());
+        clearStagingArea();
     }
 
-    public static Commit commitFileOps(Commit commit) {
-        /* Populate staged file references in commit */
-        List<String> stagedFiles = Utils.plainFilenamesIn(STAGING_DIR);
-        if (!stagedFiles.isEmpty()) {
-            for (String file : stagedFiles) {
-                File f = join(STAGING_DIR, file);
-                String hashedFile = sha1(readContentsAsString(f));
-                commit.getMap().put(file, hashedFile);
-                File committed = join(COMMITTED_DIR, hashedFile);
-                copyFile(f, committed);
-                f.delete();
-            }
-        }
+    /* Returns the root tree of PARENT with the staging area applied. Only the trees of
+    directories holding staged files are written again.
+     */
+    public static String commitTree(Commit parent) {
+        /* Populate staged file references in commit; their blobs were stored by add */
+        Index index = Index.load();
+        HashMap<String, String> changes = new HashMap<>(index.getStaged());
 
         /* Go through the staged for removal and remove from the current commit */
-        List<String> stagedForRemovalFiles = Utils.plainFilenamesIn(STAGING_FOR_REMOVAL_DIR);
-        if (!stagedForRemovalFiles.isEmpty()) {
-            stagedForRemovalFiles.forEach(file -> {
-                commit.getMap().remove(file);
-                File f = join(STAGING_FOR_REMOVAL_DIR, file);
-                f.delete();
-            });
+        for (String file : index.getRemoved()) {
+            changes.put(file, null);
         }
-        return commit;
+        return Tree.update(parent.getTree(), changes);
     }
 
     public static void rm(String filename) {
+        filename = workingPath(filename);
         Head head = Head.load();
         String lastCommitRef = head.getCommitReference();
         Commit commit = Commit.load(lastCommitRef);
 
         /* If the file is neither staged nor tracked by the head commit, print the error message  */
-        boolean staged = false;
-        if (plainFilenamesIn(STAGING_DIR) != null) {
-            List<String> filesStagedForRemoval = plainFilenamesIn(STAGING_DIR);
-            if (filesStagedForRemoval.contains(filename)) {
-                staged = true;
-            }
-        }
-        if (!commit.getMap().containsKey(filename) && !staged) {
+        Index index = Index.load();
+        boolean staged = index.getStaged().containsKey(filename);
+        boolean tracked = commit.getFile(filename) != null;
+        if (!tracked && !staged) {
             System.out.println("No reason to remove the file.");
             return;
         }
         /* Unstage the file if it is currently staged for addition. */
         if (staged) {
-            File f = join(STAGING_DIR, filename);
-            f.delete();
+            index.getStaged().remove(filename);
             System.out.println(filename + " unstaged from addition");
         }
         /*If the file is tracked in the current commit, stage it for removal and remove the file
          from the working directory if the user has not already done so (do not remove it unless
          it is tracked in the current commit).*/
-        if (commit.getMap().containsKey(filename)) {
-            File f = join(CWD, filename);
-            File f1 = join(STAGING_FOR_REMOVAL_DIR, filename);
-            copyFile(f, f1);
-            f.delete();
+        if (tracked) {
+            index.stageRemoval(filename);
+            deleteWorkingFile(filename);
             System.out.println(filename + " staged for removal");
         }
+        index.save();
     }
 
     public static void log() {
         Head head = Head.load();
         //TODO Starts from commit referenced by HEAD pointer on the current branch
-        String commitRef = head.getCommitReference();
-        while (commitRef != null) {
-            Commit commit = Commit.load(commitRef);
-            System.out.println("===");
-            System.out.println(String.format("commit %s", commitRef));
-            if (commit.getParentReference2() != null) {
-                String parent1 = commit.getParentReference().substring(0, 7);
-                String parent2 = commit.getParentReference2().substring(0, 7);
-                System.out.println(String.format("Merge: %s %s", parent1, parent2));
-            }
-
-            Date date = commit.getTimeStamp();
-            SimpleDateFormat df = new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy Z");
-            System.out.println(String.format("Date: %s", df.format(date)));
-            String message = commit.getMessage();
-            System.out.println(message);
-            System.out.println();
-            commitRef = commit.getParentReference();
+        CommitGraph graph = CommitGraph.load();
+        int position = graph.position(head.getCommitReference());
+        while (position != CommitGraph.NONE) {
+            String commitRef = graph.id(position);
+            System.out.print(logEntry(commitRef, Commit.loadHeader(commitRef)));
+            position = graph.parent(position);
             //TODO merged commits: The first parent is the branch you were on when you did the merge;
             // the second is that of the merged-in branch. DONE
         }
     }
 
+    /* Formats the log entry of COMMIT, whose id is COMMITREF. */
+    static String logEntry(String commitRef, Commit commit) {
+        StringBuilder entry = new StringBuilder();
+        entry.append("===\n");
+        entry.append(String.format("commit %s%n", commitRef));
+        if (commit.getParentReference2() != null) {
+            String parent1 = commit.getParentReference().substring(0, 7);
+            String parent2 = commit.getParentReference2().substring(0, 7);
+            entry.append(String.format("Merge: %s %s%n", parent1, parent2));
+        }
+        entry.append(String.format("Date: %s%n", LOG_DATE_FORMAT.get().format(commit.getTimeStamp())));
+        entry.append(commit.getMessage()).append(System.lineSeparator());
+        entry.append(System.lineSeparator());
+        return entry.toString();
+    }
+
+    /* SimpleDateFormat is not thread-safe, so each thread formatting log entries gets its own */
+    private static final ThreadLocal<SimpleDateFormat> LOG_DATE_FORMAT =
+            ThreadLocal.withInitial(() -> new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy Z"));
+
+    /* Most log entries global-log formats ahead of the one it is writing, per thread */
+    private static final int GLOBAL_LOG_WINDOW = 64;
+
+    /* Prints the log entry of every commit ever made, in commit-graph order.
+    Commits are decoded and formatted in parallel, but at most a fixed window of
+    entries is in flight, and entries are written in order through one buffered
+    writer, so memory use does not grow with the history.
+     */
     public static void globallog() {
-        //TODO
+        CommitGraph graph = CommitGraph.load();
+        int threads = Runtime.getRuntime().availableProcessors();
+        int window = GLOBAL_LOG_WINDOW * threads;
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        Deque<Future<String>> pending = new ArrayDeque<>();
+        BufferedWriter out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+        try {
+            for (int position = 0; position < graph.count(); position += 1) {
+                if (pending.size() == window) {
+                    out.write(pending.poll().get());
+                }
+                String commitRef = graph.id(position);
+                pending.add(pool.submit(() -> logEntry(commitRef, Commit.loadHeader(commitRef))));
+            }
+            while (!pending.isEmpty()) {
+                out.write(pending.poll().get());
+            }
+            out.flush();
+        } catch (IOException | ExecutionException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
     }
 
     public static void find(String message) {
-        //TODO
-        boolean flag = false;
-        List<String> list = plainFilenamesIn(COMMITS_DIR);
+        /* Looked up in the exact-message table rather than by reading every commit */
+        List<String> list = MessageIndex.find(message);
         for (String c : list) {
-            Commit commit = Commit.load(c);
-            if (commit.getMessage().equals(message)) {
-                System.out.println(c);
-                flag = true;
-            }
+            System.out.println(c);
         }
-        if (!flag) {
+        if (list.isEmpty()) {
+            System.out.println("Found no commit with that message.");
+        }
+    }
+
+    /* Prints the ids of the commits whose messages contain every word of TERMS, ignoring case. */
+    public static void search(String... terms) {
+        List<String> list = MessageIndex.search(terms);
+        for (String c : list) {
+            System.out.println(c);
+        }
+        if (list.isEmpty()) {
             System.out.println("Found no commit with that message.");
         }
     }
@@ -256,24 +413,18 @@ public class Repository {
     public static void status() {
         Head head = Head.load();
         String br = head.getBranch();
-        Branch branch = Branch.load();
+        Index index = Index.load();
 
-        branches(branch, br);
-        stagedForAddition();
-        stagedForRemoval();
-        modifiedNotStaged(head);
-        untracked(head);
+        branches(Refs.all().keySet(), br);
+        stagedForAddition(index);
+        stagedForRemoval(index);
+        modifiedNotStaged(head, index);
+        untracked(head, index);
 
     }
 
-    public static void branches(Branch branch, String headBranch) {
+    public static void branches(Collection<String> branches, String headBranch) {
         System.out.println("=== Branches ===");
-        List<String> branches = new ArrayList<>();
-        for (HashMap.Entry<String, String> entry : branch.getBranch().entrySet()) {
-            branches.add(entry.getKey());
-
-        }
-        Collections.sort(branches);
         for (String brnch : branches) {
             String s = headBranch.equals(brnch) ? "*" : "";
             System.out.println(s + brnch);
@@ -281,66 +432,60 @@ public class Repository {
         System.out.println();
     }
 
-    public static void stagedForAddition() {
+    public static void stagedForAddition(Index index) {
         System.out.println("=== Staged Files ===");
-        List<String> stagedForAddition = plainFilenamesIn(STAGING_DIR);
-        Collections.sort(stagedForAddition);
-        for (String file : stagedForAddition) {
+        for (String file : index.getStaged().keySet()) {
             System.out.println(file);
         }
         System.out.println();
     }
 
-    public static void stagedForRemoval() {
+    public static void stagedForRemoval(Index index) {
         System.out.println("=== Removed Files ===");
-        List<String> stagedForRemoval = plainFilenamesIn(STAGING_FOR_REMOVAL_DIR);
-        Collections.sort(stagedForRemoval);
-        for (String file : stagedForRemoval) {
+        for (String file : index.getRemoved()) {
             System.out.println(file);
         }
         System.out.println();
     }
 
-    public static void modifiedNotStaged(Head head) {
+    public static void modifiedNotStaged(Head head, Index index) {
         System.out.println("=== Modifications Not Staged For Commit ===");
         List<String> modNotStagedForCommit = new ArrayList<>();
-        List<String> stagedForRemoval = plainFilenamesIn(STAGING_FOR_REMOVAL_DIR);
-        List<String> stagedForAddition = plainFilenamesIn(STAGING_DIR);
+        Set<String> stagedForRemoval = index.getRemoved();
+        Map<String, String> stagedForAddition = index.getStaged();
         Commit commit = Commit.load(head.getCommitReference());
+        Manifest committed = commit.getManifest();
 
-        List<String> committed = new ArrayList<>();
-        for (HashMap.Entry<String, String> entry : commit.getMap().entrySet()) {
-            committed.add(entry.getKey());
-        }
-
-        List<String> workingdirfiles = plainFilenamesIn(CWD);
-        for (String file : workingdirfiles) {
+        List<String> workingFileList = workingFiles();
+        Set<String> workingdirfiles = new HashSet<>(workingFileList);
+        StatCache.retain(workingFileList);
+        for (String file : workingFileList) {
             File f = join(CWD, file);
-            String hashedFile = sha1(readContentsAsString(f));
+            String hashedFile = StatCache.hash(f, file);
             /* Tracked in the current commit, changed in the working directory, but not staged */
-            if (commit.getMap().containsKey(file)) {
-                if (!commit.getMap().get(file).equals(hashedFile) && !stagedForAddition.contains(file)) {
+            int i = committed.indexOf(file);
+            if (i >= 0) {
+                if (!committed.idEquals(i, ObjectId.fromHex(hashedFile)) && !stagedForAddition.containsKey(file)) {
                     modNotStagedForCommit.add(file + " (modified)");
                 }
             }
             /* Staged for addition, but with different contents than in the working directory */
-            if (stagedForAddition.contains(file)) {
-                File f1 = join(STAGING_DIR, file);
-                String hashedf1 = sha1(readContentsAsString(f1));
-                if (!hashedFile.equals(hashedf1)) {
+            if (stagedForAddition.containsKey(file)) {
+                if (!hashedFile.equals(stagedForAddition.get(file))) {
                     modNotStagedForCommit.add(file + " (modified)");
                 }
             }
         }
 
         /*Staged for addition, but deleted in the working directory */
-        for (String file : stagedForAddition) {
+        for (String file : stagedForAddition.keySet()) {
             if (!workingdirfiles.contains(file)) {
                 modNotStagedForCommit.add(file + " (deleted)");
             }
         }
         /*Not staged for removal, but tracked in the current commit and deleted from the working directory. */
-        for (String file : committed) {
+        for (int i = 0; i < committed.size(); i += 1) {
+            String file = committed.path(i);
             if (!stagedForRemoval.contains(file) && !workingdirfiles.contains(file)) {
                 modNotStagedForCommit.add(file + " (deleted)");
             }
@@ -350,11 +495,12 @@ public class Repository {
             System.out.println(file);
         }
         System.out.println();
+        StatCache.save();
     }
 
-    public static void untracked(Head head) {
+    public static void untracked(Head head, Index index) {
         Commit commit = Commit.load(head.getCommitReference());
-        List<String> untracked = getUntracked(commit);
+        List<String> untracked = getUntracked(commit, index);
 
         System.out.println("=== Untracked Files ===");
         for (String file : untracked) {
@@ -368,51 +514,46 @@ public class Repository {
     overwriting the version of the file that’s already there if there is one. The new version of the file is not staged.
      */
     public static void checkoutFile(String file) {
-        File HEAD = join(GITLET_DIR, HEAD_FILE);
-        Head head = readObject(HEAD, Head.class);
+        file = workingPath(file);
+        Head head = Head.load();
         String commitRef = head.getCommitReference();
-        File com = join(COMMITS_DIR, commitRef);
-        Commit commit = readObject(com, Commit.class);
-        if (!commit.getMap().containsKey(file)) {
+        Commit commit = Commit.load(commitRef);
+        String blob = commit.getFile(file);
+        if (blob == null) {
             System.out.println("File does not exist in that commit.");
             return;
         }
         File target = join(CWD, file);
-        File source = join(COMMITTED_DIR, commit.getMap().get(file));
-        copyFile(source, target);
+        Blob.restore(blob, target);
     }
 
     public static void checkoutCommit(String commitRef, String file) {
-        List<String> listOfCommits = plainFilenamesIn(COMMITS_DIR);
-        if (!listOfCommits.contains(commitRef)) {
-            System.out.println("No commit with that id exists.");
+        commitRef = resolveCommitId(commitRef);
+        if (commitRef == null) {
             return;
         }
-        File com = join(COMMITS_DIR, commitRef);
-        Commit commit = readObject(com, Commit.class);
-        if (!commit.getMap().containsKey(file)) {
+        file = workingPath(file);
+        Commit commit = Commit.load(commitRef);
+        String blob = commit.getFile(file);
+        if (blob == null) {
             System.out.println("File does not exist in that commit.");
             return;
         }
         File target = join(CWD, file);
-        File source = join(COMMITTED_DIR, commit.getMap().get(file));
-        copyFile(source, target);
+        Blob.restore(blob, target);
 
     }
 
     public static void checkoutBranch(String branch) {
-        File HEAD = join(GITLET_DIR, HEAD_FILE);
-        Head head = readObject(HEAD, Head.class);
+        Head head = Head.load();
 
         String commitRef = head.getCommitReference();
-        File com = join(COMMITS_DIR, commitRef);
-        Commit commit = readObject(com, Commit.class);
+        Commit commit = Commit.load(commitRef);
 
-        File BRANCH = join(GITLET_DIR, BRANCH_FILE);
-        Branch br = readObject(BRANCH, Branch.class);
+        String newHeadCommit = Refs.resolve(branch);
 
         /*If no branch with that name exists, print No such branch exists. */
-        if (!br.getBranch().containsKey(branch)) {
+        if (newHeadCommit == null) {
             System.out.println("No such branch exists.");
             return;
         }
@@ -424,11 +565,7 @@ public class Repository {
         /* If a working file is untracked in the current branch and would be overwritten by the checkout,
         print There is an untracked file in the way; delete it, or add and commit it first. and exit
          */
-        List<String> committed = new ArrayList<>();
-        for (HashMap.Entry<String, String> entry : commit.getMap().entrySet()) {
-            committed.add(entry.getKey());
-        }
-        List<String> untracked = getUntracked(commit);
+        List<String> untracked = getUntracked(commit, Index.load());
 
         if (!untracked.isEmpty()) {
             System.out.println("There is an untracked file in the way; delete it, or add and commit it first.");
@@ -438,30 +575,100 @@ public class Repository {
          overwriting the versions of the files that are already there if they exist. Also, at the end of this command,
           the given branch will now be considered the current branch (HEAD).
          */
-        String newHeadCommit = br.getBranch().get(branch);
-        File newCom = join(COMMITS_DIR, newHeadCommit);
-        Commit newCommit = readObject(newCom, Commit.class);
+        Commit newCommit = Commit.load(newHeadCommit);
 
-        for (Map.Entry<String, String> entry : newCommit.getMap().entrySet()) {
-            File source = join(COMMITTED_DIR, entry.getValue());
-            File target = join(CWD, entry.getKey());
-            copyFile(source, target);
-        }
+        /* Only files that differ between the two commits are written or deleted */
+        checkoutTree(commit, newCommit);
         head.setBranch(branch);
-        head.setCommitReference(newHeadCommit);
-        writeObject(HEAD, head);
-
-        /* Any files that are tracked in the current branch but are not present in the checked-out branch are deleted.*/
-        for (String file : committed) {
-            if (!newCommit.getMap().containsKey(file)) {
-                File f = join(CWD, file);
-                if (f.exists()) {
-                    f.delete();
+        head.save();
+
+        /*  The staging areas are cleared */
+        clearStagingArea();
+    }
+
+    /* Most files checkoutTree writes at the same time */
+    private static final int CHECKOUT_THREADS = Math.min(8, Runtime.getRuntime().availableProcessors());
+
+    /* Threads used to walk the working tree and to hash working files. */
+    private static final int WORKER_THREADS = Runtime.getRuntime().availableProcessors();
+
+    /* Changes the working files tracked by FROM into those tracked by TO. Files tracked
+    by FROM but not TO are deleted, and files TO adds or changes are written from their
+    blobs on a bounded pool of CHECKOUT_THREADS. The two trees are compared with Tree.diff,
+    so directories that are the same in both commits are skipped without being read.
+    Files staged or removed under paths the two commits agree on are written from TO too,
+    since callers clear the staging that explained them. Callers must check for untracked
+    files in the way first.
+     */
+    static void checkoutTree(Commit from, Commit to) {
+        List<String> deleted = new ArrayList<>();
+        Map<String, String> changed = new TreeMap<>();
+        Tree.diff(from.getTree(), to.getTree(), (path, before, after) -> {
+            if (after == null) {
+                deleted.add(path);
+            } else {
+                changed.put(path, after);
+            }
+        });
+        Index index = Index.load();
+        Set<String> staged = new TreeSet<>(index.getStaged().keySet());
+        staged.addAll(index.getRemoved());
+        for (String path : staged) {
+            String blob = changed.containsKey(path) ? null : to.getFile(path);
+            if (blob != null) {
+                changed.put(path, blob);
+            }
+        }
+        for (String file : deleted) {
+            deleteWorkingFile(file);
+        }
+        restoreWorkingFiles(changed);
+    }
+
+    /* Returns the message of the exception a pool task failed with. ForkJoinPool
+    rethrows a copy of it, whose cause is the original.
+     */
+    private static String failure(ExecutionException e) {
+        Throwable cause = e.getCause();
+        while (cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause.getMessage();
+    }
+
+    /* Writes each blob of FILES (path to blob id) to its working file, on a bounded pool of
+    CHECKOUT_THREADS.
+     */
+    static void restoreWorkingFiles(Map<String, String> files) {
+        if (files.size() <= 1) {
+            for (Map.Entry<String, String> entry : files.entrySet()) {
+                try {
+                    Blob.restore(entry.getValue(), join(CWD, entry.getKey()));
+                } catch (IllegalArgumentException e) {
+                    throw Utils.error("Could not write %s: %s", entry.getKey(), e.getMessage());
                 }
             }
+            return;
+        }
+        ForkJoinPool pool = new ForkJoinPool(CHECKOUT_THREADS);
+        try {
+            List<String> paths = new ArrayList<>(files.keySet());
+            List<Future<?>> writes = new ArrayList<>();
+            for (String path : paths) {
+                writes.add(pool.submit(() -> Blob.restore(files.get(path), join(CWD, path))));
+            }
+            for (int i = 0; i < writes.size(); i += 1) {
+                try {
+                    writes.get(i).get();
+                } catch (ExecutionException e) {
+                    throw Utils.error("Could not write %s: %s", paths.get(i), failure(e));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
         }
-        /*  The staging areas are cleared */
-        clearStagingArea();
     }
 
     public static void branch(String branch) {
@@ -471,13 +678,15 @@ public class Repository {
             System.out.println("Can't branch off initial commmit.");
             return;
         }
-        Branch br = Branch.load();
-        if (br.getBranch().containsKey(branch)) {
+        if (!Refs.isValidName(branch)) {
+            System.out.println("Invalid branch name.");
+            return;
+        }
+        if (Refs.exists(branch)) {
             System.out.println("A branch with that name already exists.");
             return;
         }
-        br.getBranch().put(branch, head.getCommitReference());
-        br.save();
+        Refs.update(branch, head.getCommitReference());
     }
 
     /* Checks out all the files tracked by the given commit. Removes tracked files
@@ -487,83 +696,51 @@ public class Repository {
       cleared. The command is essentially checkout of an arbitrary commit that also changes the current branch head.
      */
     public static void reset(String commitRef) {
-        List<String> committs = plainFilenamesIn(COMMITS_DIR);
-        if (!committs.contains(commitRef)) {
-            System.out.println("No commit with that id exists.");
+        commitRef = resolveCommitId(commitRef);
+        if (commitRef == null) {
             return;
         }
 
-        File HEAD = join(GITLET_DIR, HEAD_FILE);
-        Head head = readObject(HEAD, Head.class);
+        Head head = Head.load();
         String headCommitRef = head.getCommitReference();
-        File headCom = join(COMMITS_DIR, headCommitRef);
-        Commit headCommit = readObject(headCom, Commit.class);
-        File BRANCH = join(GITLET_DIR, BRANCH_FILE);
-        Branch branch = readObject(BRANCH, Branch.class);
-
-        File com = join(COMMITS_DIR, commitRef);
-        Commit commit = readObject(com, Commit.class);
+        Commit headCommit = Commit.load(headCommitRef);
 
-        List<String> committed = new ArrayList<>();
-        for (HashMap.Entry<String, String> entry : headCommit.getMap().entrySet()) {
-            committed.add(entry.getKey());
-        }
+        Commit commit = Commit.load(commitRef);
 
-        List<String> untracked = getUntracked(headCommit);
+        List<String> untracked = getUntracked(headCommit, Index.load());
         if (!untracked.isEmpty()) {
             System.out.println("There is an untracked file in the way; delete it, or add and commit it first.");
             return;
         }
 
-        for (Map.Entry<String, String> entry : commit.getMap().entrySet()) {
-            File source = join(COMMITTED_DIR, entry.getValue());
-            File target = join(CWD, entry.getKey());
-            copyFile(source, target);
-        }
-
-        /* Any files that are tracked in the current commit but are not present in the given commit are deleted.*/
-        for (String file : committed) {
-            if (!commit.getMap().containsKey(file)) {
-                File f = join(CWD, file);
-                if (f.exists()) {
-                    f.delete();
-                }
-            }
-        }
-
-        head.setCommitReference(commitRef);
-        branch.getBranch().put(head.getBranch(), commitRef);
+        checkoutTree(headCommit, commit);
 
-        writeObject(HEAD, head);
-        writeObject(BRANCH, branch);
+        Refs.update(head.getBranch(), commitRef);
 
         /* Clear staging areas */
         clearStagingArea();
     }
     public static void mergebase(String givenBranch) {
-        Branch branch = Branch.load();
-        String givenBranchHeadCommitRef = branch.getBranch().get(givenBranch);
-
-        Head head = Head.load();
-        String HeadCommitRef = head.getCommitReference();
-
-        String LCA = findLCA(givenBranch);
-        System.out.println(LCA);
+        if (!Refs.exists(givenBranch)) {
+            System.out.println("A branch with that name does not exist.");
+            return;
+        }
+        for (String base : mergeBases(givenBranch)) {
+            System.out.println(base);
+        }
     }
     public static void merge(String givenBranch) {
-        Branch branch = Branch.load();
-        String givenBranchHeadCommitRef = branch.getBranch().get(givenBranch);
+        String givenBranchHeadCommitRef = Refs.resolve(givenBranch);
 
         Head head = Head.load();
         String headCommitRef = head.getCommitReference();
         String br = head.getBranch();
         Commit commit = Commit.load(headCommitRef);
 
-        List<String> stagedForRemoval = plainFilenamesIn(STAGING_FOR_REMOVAL_DIR);
-        List<String> stagedForAddition = plainFilenamesIn(STAGING_DIR);
-        List<String> untracked = getUntracked(commit);
+        Index index = Index.load();
+        List<String> untracked = getUntracked(commit, index);
 
-        if (!stagedForAddition.isEmpty() && !stagedForRemoval.isEmpty()) {
+        if (!index.isEmpty()) {
             System.out.println("You have uncommitted changes.");
             return;
         }
@@ -597,10 +774,8 @@ public class Repository {
             return;
         }
 
-        if (condition1(LCA, givenBranch)) {
-            mergeCommit(givenBranch);
-        }
-
+        mergeFiles(LCA, commit, Commit.load(givenBranchHeadCommitRef), index);
+        mergeCommit(givenBranch);
 
     }
 
@@ -609,174 +784,334 @@ public class Repository {
      */
     public static void branchFastForward(String givenBranch, Head head) {
         String currentBranch = head.getBranch();
-        System.out.println(currentBranch);
         checkoutBranch(givenBranch);
-        System.out.println(currentBranch);
         head = Head.load();
-        Branch branch = Branch.load();
-        branch.getBranch().put(currentBranch, head.getCommitReference());
+        Refs.update(currentBranch, head.getCommitReference());
         head.setBranch(currentBranch);
-
-        branch.save();
         head.save();
 
     }
 
-    /* If a file that exists at split point, unchanged at current branch, but
-    changed in the given branch, checkout file from the given branch front commit
-    and add the file to the staging area;
+    /* Merges the files of the GIVEN commit into those of the CURRENT one, whose best common
+    ancestor is LCA (null if they share no history). The working directory is updated and every
+    result is staged in INDEX, which is saved once. Files changed differently on both sides get
+    conflict markers and are staged as they are. Returns true iff there was a conflict.
      */
-    public static boolean condition1(String LCA, String givenBranch) {
-        Head head = Head.load();
-        Branch branch = Branch.load();
-        Commit commitSplit = Commit.load(LCA);
-        Commit commitHead = Commit.load(head.getCommitReference());
-
-        String givenCommitRef = branch.getBranch().get(givenBranch);
-        Commit commitGiven = Commit.load(givenCommitRef);
-
-        HashMap<String, String> inSpChangedInGiven = new HashMap<>();
-        HashMap<String, String> inSpNotChangedInCurr = new HashMap<>();
-        boolean flag = false;
-
-        commitSplit.getMap().forEach((fileSp, sha1Sp) -> {
-            commitGiven.getMap().forEach((fileGiven, sha1Given) -> {
-                if (fileSp.equals(fileGiven) && !sha1Sp.equals(sha1Given)) {
-                    inSpChangedInGiven.put(fileGiven, sha1Given);
-                }
-            });
-        });
+    public static boolean mergeFiles(String LCA, Commit current, Commit given, Index index) {
+        Manifest split = LCA == null ? Manifest.EMPTY : Commit.load(LCA).getManifest();
+        ThreeWayMerge result = ThreeWayMerge.merge(split, current.getManifest(), given.getManifest());
 
-        commitSplit.getMap().forEach((fileSp, sha1Sp) -> {
-            commitHead.getMap().forEach((fileCurr, sha1Curr) -> {
-                if (fileSp.equals(fileCurr) && sha1Sp.equals(sha1Curr)) {
-                    inSpNotChangedInCurr.put(fileCurr, sha1Curr);
-                }
-            });
-        });
+        for (String file : result.getRemoved()) {
+            index.stageRemoval(file);
+            deleteWorkingFile(file);
+        }
+        restoreWorkingFiles(result.getTaken());
+        for (Map.Entry<String, String> entry : result.getTaken().entrySet()) {
+            index.stage(entry.getKey(), entry.getValue());
+        }
+        for (String file : result.getConflicts()) {
+            File target = join(CWD, file);
+            writeConflict(target, current.getFile(file), given.getFile(file));
+            index.stage(file, StatCache.store(target, file));
+        }
+        index.save();
+        if (result.getConflicts().isEmpty()) {
+            return false;
+        }
+        StatCache.save();
+        System.out.println("Encountered a merge conflict.");
+        return true;
+    }
 
-        /*inSpChangedInGiven.forEach((fileGiven, sha1Given) -> {
-            inSpNotChangedInCurr.forEach((fileCurr, sha1Curr) -> {
-                if (fileGiven.equals(fileCurr)) {
-                    checkoutCommit(givenCommitRef, fileGiven);
-                    add(fileGiven);
+    /* Writes the blobs CURRENT and GIVEN (either null if absent) into TARGET between conflict markers. */
+    private static void writeConflict(File target, String current, String given) {
+        target.getParentFile().mkdirs();
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(target))) {
+            out.write("<<<<<<< HEAD\n".getBytes(StandardCharsets.UTF_8));
+            if (current != null) {
+                try (InputStream in = Blob.open(current)) {
+                    in.transferTo(out);
                 }
-            });
-        });*/
-
-        Set<String> set1 = inSpChangedInGiven.keySet();
-        Set<String> set2 = inSpNotChangedInCurr.keySet();
-
-        for(String fileGiven: set1){
-            for(String fileCurr: set2) {
-                if (fileGiven.equals(fileCurr)) {
-                    checkoutCommit(givenCommitRef, fileGiven);
-                    add(fileGiven);
-                    flag = true;
+            }
+            out.write("=======\n".getBytes(StandardCharsets.UTF_8));
+            if (given != null) {
+                try (InputStream in = Blob.open(given)) {
+                    in.transferTo(out);
                 }
             }
+            out.write(">>>>>>>\n".getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
         }
-        return flag;
     }
 
     /* Create merge commit */
     public static void mergeCommit(String givenBranch) {
         Head head = Head.load();
-        Branch branch = Branch.load();
-        String givenCommitRef = branch.getBranch().get(givenBranch);
-        Commit commit = Commit.load(head.getCommitReference());
-
-        commit.setTimeStamp(new Date());
-        commit.setMessage(String.format("Merged %s into %s", givenBranch, head.getBranch()));
-        commit.setParentReference(head.getCommitReference());
-        commit.setParentReference2(givenCommitRef);
-
-        commit = commitFileOps(commit);
+        String givenCommitRef = Refs.resolve(givenBranch);
+        Commit parent = Commit.load(head.getCommitReference());
 
-        head.setCommitReference(commit.sha1());
-        branch.getBranch().put(head.getBranch(), commit.sha1());
-
-        head.save();
-        branch.save();
+        String tree = commitTree(parent);
+        Commit commit = new Commit(String.format("Merged %s into %s", givenBranch, head.getBranch()),
+                new Date(), tree, head.getCommitReference(), givenCommitRef);
 
         commit.save();
+        CommitGraph.add(commit);
+        MessageIndex.add(commit);
 
+        Refs.update(head.getBranch(), commit.getId());
+        clearStagingArea();
     }
 
 
+    /* Returns the best common ancestor of the head commit and the front commit of BRANCH,
+    or null if they share no history.
+     */
     public static String findLCA(String branch) {
-        Head head = Head.load();
-        Commit commit = Commit.load(head.getCommitReference());
-
-        Branch br = Branch.load();
-        Commit branchCommit = Commit.load(br.getBranch().get(branch));
-        HashSet<String> branchSet = new HashSet<>();
-        branchWalk2(branchCommit, branchSet);
-        System.out.println(branchSet);
-        String LCA = commmitWalk2(commit,branchSet);
-        return LCA;
+        List<String> bases = mergeBases(branch);
+        return bases.isEmpty() ? null : bases.get(0);
     }
 
+    /* Returns the best common ancestors of the head commit and the front commit of BRANCH,
+    best first. There is more than one only for criss-cross histories.
+     */
+    public static List<String> mergeBases(String branch) {
+        Head head = Head.load();
+        CommitGraph graph = CommitGraph.load();
 
-    /* Breadth first search for last common ancestor */
-    public static String commmitWalk2(Commit commit, HashSet<String> branchSet) {
-        boolean foundLCA = false;
-        String LCA = null;
-        Queue<Commit> queue = new ArrayDeque<>();
-        queue.add(commit);
+        int commit = graph.position(head.getCommitReference());
+        int branchCommit = graph.position(Refs.resolve(branch));
+        List<String> bases = new ArrayList<>();
+        for (int base : MergeBase.find(graph, commit, branchCommit)) {
+            bases.add(graph.id(base));
+        }
+        return bases;
+    }
 
-        while(!foundLCA && !queue.isEmpty()) {
-            commit = queue.poll();
-            System.out.println(commit.sha1());
-            if (branchSet.contains(commit.sha1())){
-                LCA = commit.sha1();
-                foundLCA = true;
+    /* Prints the line changes between two versions of the tracked files:
+    with no REVISIONS, from the staged or committed version of each file to the working
+    directory; with one, from that commit to the working directory; with two, from the
+    first commit to the second. A revision is a branch name or a commit id, which may be
+    abbreviated. Files whose blob ids are equal are skipped without being read.
+     */
+    public static void diff(String... revisions) {
+        Commit[] commits = new Commit[revisions.length];
+        for (int i = 0; i < revisions.length; i += 1) {
+            String id = Refs.resolve(revisions[i]);
+            if (id == null) {
+                id = resolveCommitId(revisions[i]);
+                if (id == null) {
+                    return;
+                }
+            }
+            commits[i] = Commit.load(id);
+        }
+        BufferedWriter out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+        try {
+            if (commits.length == 2) {
+                List<String[]> changed = new ArrayList<>();
+                Tree.diff(commits[0].getTree(), commits[1].getTree(),
+                        (path, before, after) -> changed.add(new String[] {path, before, after}));
+                for (String[] change : changed) {
+                    diffFile(change[0], change[1], change[2] == null ? null : Blob.open(change[2]), out);
+                }
+            } else {
+                diffWorkingFiles(commits.length == 1 ? commits[0] : null, out);
             }
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
 
-            if (commit.getParentReference() != null) {
-                Commit commit1 = Commit.load(commit.getParentReference());
-                queue.add(commit1);
+    /* Writes the diff from each file tracked by COMMIT, or by the head commit and the staging
+    area if COMMIT is null, to its working copy.
+     */
+    private static void diffWorkingFiles(Commit commit, BufferedWriter out) throws IOException {
+        TreeMap<String, String> tracked = new TreeMap<>();
+        Index index = Index.load();
+        Commit base = commit != null ? commit : Commit.load(Head.load().getCommitReference());
+        for (Map.Entry<String, ObjectId> entry : base.getManifest()) {
+            tracked.put(entry.getKey(), entry.getValue().toString());
+        }
+        if (commit == null) {
+            tracked.putAll(index.getStaged());
+            tracked.keySet().removeAll(index.getRemoved());
+        }
+        for (Map.Entry<String, String> entry : tracked.entrySet()) {
+            File file = join(CWD, entry.getKey());
+            if (!file.isFile()) {
+                diffFile(entry.getKey(), entry.getValue(), null, out);
+            } else if (!StatCache.hash(file, entry.getKey()).equals(entry.getValue())) {
+                try (InputStream in = new FileInputStream(file)) {
+                    diffFile(entry.getKey(), entry.getValue(), in, out);
+                }
             }
-            if (commit.getParentReference2() != null) {
-                Commit commit2 = Commit.load(commit.getParentReference2());
-                queue.add(commit2);
+        }
+        StatCache.save();
+    }
+
+    /* Writes the diff of PATH from blob BEFORE (null if absent) to the contents of AFTER. */
+    private static void diffFile(String path, String before, InputStream after, BufferedWriter out)
+            throws IOException {
+        try (InputStream in = before == null ? null : Blob.open(before)) {
+            Diff.write("a/" + path, in, "b/" + path, after, out);
+        } finally {
+            if (after != null) {
+                after.close();
             }
         }
-        return LCA;
     }
 
-    /* Breadth first search for all branch ancestors */
-    public static void branchWalk2(Commit commit, HashSet<String> branchSet) {
-        Queue<Commit> queue = new ArrayDeque<>();
-        queue.add(commit);
+    /* Returns the full id of the commit abbreviated by PREFIX, a unique prefix of at least
+    MIN_ABBREV_LENGTH hex digits. Prints an error and returns null if there is no such commit
+    or the prefix is ambiguous.
+     */
+    static String resolveCommitId(String prefix) {
+        boolean hex = prefix.length() >= MIN_ABBREV_LENGTH && prefix.length() <= UID_LENGTH;
+        for (int i = 0; hex && i < prefix.length(); i += 1) {
+            hex = Character.digit(prefix.charAt(i), 16) >= 0;
+        }
+        if (!hex) {
+            System.out.println("No commit with that id exists.");
+            return null;
+        }
+        List<String> matches = CommitGraph.load().withPrefix(prefix, 2);
+        if (matches.isEmpty()) {
+            System.out.println("No commit with that id exists.");
+            return null;
+        }
+        if (matches.size() > 1) {
+            System.out.println(String.format("Commit id %s is ambiguous.", prefix));
+            return null;
+        }
+        return matches.get(0);
+    }
+
+    /* Converts an existing repository's object store to the current on-disk format. */
+    public static void upgrade() {
+        int sharded = shardObjects(COMMITS_DIR) + shardObjects(COMMITTED_DIR);
+        System.out.println(String.format("Sharded %d objects.", sharded));
+        int blobs = Blob.upgrade();
+        System.out.println(String.format("Compressed %d blobs.", blobs));
+        int commits = Commit.upgrade();
+        System.out.println(String.format("Re-encoded %d commits.", commits));
+        CommitGraph.rebuild();
+        Head.load().save();
+        int refs = Refs.pack();
+        System.out.println(String.format("Packed %d branches.", refs));
+        int staged = Index.upgrade();
+        System.out.println(String.format("Moved %d staging entries into the index.", staged));
+        int indexed = MessageIndex.rebuild();
+        System.out.println(String.format("Indexed %d commit messages.", indexed));
+    }
 
-        while(!queue.isEmpty()){
-            commit = queue.poll();
-            branchSet.add(commit.sha1());
+    /* Packs all reachable commits and blobs into a single pack file, all branches into
+    packed-refs, and the commits added to the commit graph since into its base.
+     */
+    public static void repack() {
+        int packed = Pack.repack();
+        System.out.println(String.format("Packed %d objects.", packed));
+        CommitGraph.compact();
+        int refs = Refs.pack();
+        System.out.println(String.format("Packed %d branches.", refs));
+    }
 
+    /* Returns the file holding object ID in the sharded object directory DIR.
+     * The first FANOUT_LENGTH hex digits of ID name the subdirectory and the
+     * rest name the file, so no directory holds more than a fraction of the objects.
+     */
+    static File objectFile(File dir, String id) {
+        return join(dir, id.substring(0, FANOUT_LENGTH), id.substring(FANOUT_LENGTH));
+    }
 
-            if (commit.getParentReference() != null) {
-                Commit commit1 = Commit.load(commit.getParentReference());
-                queue.add(commit1);
-            }
+    /* Returns the error for object ID, which is not in DIR, with MESSAGE. If an older
+     * version of gitlet stored it flat in DIR, the error says to upgrade the repository instead.
+     */
+    static GitletException missingObject(File dir, String id, String message) {
+        if (isObjectId(id) && join(dir, id).isFile()) {
+            return upgradeNeeded();
+        }
+        return error(message);
+    }
+
+    private static GitletException upgradeNeeded() {
+        return error("This repository was made by an older version of gitlet;"
+                + " run 'gitlet upgrade' to use it.");
+    }
 
-            if (commit.getParentReference2() != null) {
-                Commit commit2 = Commit.load(commit.getParentReference2());
-                queue.add(commit2);
+    /* Returns true iff ID is a well-formed full object id. */
+    static boolean isObjectId(String id) {
+        if (id == null || id.length() != UID_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < id.length(); i += 1) {
+            if (Character.digit(id.charAt(i), 16) < 0) {
+                return false;
             }
+        }
+        return true;
+    }
 
+    /* Returns the ids of all objects in the sharded object directory DIR, in
+     * lexicographic order. Fails with a hint to upgrade if DIR holds unsharded objects.
+     */
+    static List<String> objectIds(File dir) {
+        List<String> ids = new ArrayList<>();
+        String[] shards = dir.list();
+        if (shards == null) {
+            return ids;
         }
+        Arrays.sort(shards);
+        for (String shard : shards) {
+            if (isObjectId(shard)) {
+                /* Stored flat by an older version: the listing would miss it. */
+                throw upgradeNeeded();
+            }
+            if (shard.length() != FANOUT_LENGTH) {
+                continue;
+            }
+            List<String> files = plainFilenamesIn(join(dir, shard));
+            if (files == null) {
+                continue;
+            }
+            for (String file : files) {
+                if (isObjectId(shard + file)) {
+                    ids.add(shard + file);
+                }
+            }
+        }
+        return ids;
     }
 
-    private static List<String> getUntracked(Commit commit) {
-        List<String> committed = new ArrayList<>();
-        for (HashMap.Entry<String, String> entry : commit.getMap().entrySet()) {
-            committed.add(entry.getKey());
+    /* Moves objects stored flat in DIR by older versions of gitlet into their
+     * fan-out subdirectories. Returns the number of objects moved.
+     */
+    static int shardObjects(File dir) {
+        List<String> files = plainFilenamesIn(dir);
+        if (files == null) {
+            return 0;
         }
+        int moved = 0;
+        for (String id : files) {
+            if (!isObjectId(id)) {
+                continue;
+            }
+            File target = objectFile(dir, id);
+            target.getParentFile().mkdirs();
+            if (!join(dir, id).renameTo(target)) {
+                throw error("Could not move object %s.", id);
+            }
+            moved += 1;
+        }
+        return moved;
+    }
 
-        List<String> stagedForAddition = plainFilenamesIn(STAGING_DIR);
-        List<String> stagedForRemoval = plainFilenamesIn(STAGING_FOR_REMOVAL_DIR);
-        List<String> workingDirFiles = plainFilenamesIn(CWD);
+    private static List<String> getUntracked(Commit commit, Index index) {
+        Set<String> stagedForAddition = index.getStaged().keySet();
+        Set<String> stagedForRemoval = index.getRemoved();
+        List<String> workingDirFiles = workingFiles();
+        Manifest committed = commit.getManifest();
 
         List<String> untracked = new ArrayList<>();
         for (String file : workingDirFiles) {
@@ -790,22 +1125,99 @@ public class Repository {
         return untracked;
     }
 
-    private static void clearStagingArea() {
-        List<String> stagedForAddition = plainFilenamesIn(STAGING_DIR);
-        List<String> stagedForRemoval = plainFilenamesIn(STAGING_FOR_REMOVAL_DIR);
+    /* Returns the paths of all files in the working directory outside .gitlet, relative to
+    it and separated by '/', in lexicographic order.
+     */
+    static List<String> workingFiles() {
+        return workingFiles(CWD, "");
+    }
 
-        for (String file : stagedForAddition) {
-            File f = join(STAGING_DIR, file);
-            if (f.exists()) {
-                f.delete();
-            }
+    /* Returns the paths of the regular files under DIR, whose path is PREFIX (empty or ending
+    in '/'), sorted. Directories are listed in parallel, one task each.
+     */
+    static List<String> workingFiles(File dir, String prefix) {
+        ForkJoinPool pool = new ForkJoinPool(WORKER_THREADS);
+        try {
+            List<String> files = pool.invoke(new WalkTask(dir.toPath(), prefix));
+            Collections.sort(files);
+            return files;
+        } finally {
+            pool.shutdownNow();
         }
+    }
+
+    /* Lists the regular files under a directory, forking a subtask for each subdirectory.
+    Symbolic links are not followed, and .gitlet is skipped.
+     */
+    private static class WalkTask extends RecursiveTask<List<String>> {
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final String prefix;
 
-        for (String file : stagedForRemoval) {
-            File f = join(STAGING_FOR_REMOVAL_DIR, file);
-            if (f.exists()) {
-                f.delete();
+        WalkTask(Path dir, String prefix) {
+            this.dir = dir;
+            this.prefix = prefix;
+        }
+
+        @Override
+        protected List<String> compute() {
+            List<String> files = new ArrayList<>();
+            List<WalkTask> subdirectories = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    BasicFileAttributes attrs = Files.readAttributes(entry, BasicFileAttributes.class,
+                            LinkOption.NOFOLLOW_LINKS);
+                    String path = prefix + entry.getFileName();
+                    if (attrs.isDirectory()) {
+                        if (!entry.equals(GITLET_DIR.toPath())) {
+                            subdirectories.add(new WalkTask(entry, path + "/"));
+                        }
+                    } else if (attrs.isRegularFile()) {
+                        files.add(path);
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e.getMessage());
             }
+            for (WalkTask task : invokeAll(subdirectories)) {
+                files.addAll(task.join());
+            }
+            return files;
+        }
+    }
+
+    /* Returns NAME, a file name given on the command line, as a path relative to the working
+    directory separated by '/'.
+     */
+    static String workingPath(String name) {
+        Path root = CWD.toPath();
+        return toWorkingPath(root.relativize(root.resolve(name).normalize()));
+    }
+
+    private static String toWorkingPath(Path relative) {
+        StringJoiner path = new StringJoiner("/");
+        for (Path part : relative) {
+            path.add(part.toString());
         }
+        return path.toString();
+    }
+
+    /* Deletes the working file PATH if it exists, and then any directories it leaves empty. */
+    static void deleteWorkingFile(String path) {
+        File f = join(CWD, path);
+        if (!f.delete()) {
+            return;
+        }
+        File dir = f.getParentFile();
+        while (!dir.equals(CWD) && dir.delete()) {
+            dir = dir.getParentFile();
+        }
+    }
+
+    private static void clearStagingArea() {
+        Index index = Index.load();
+        index.clear();
+        index.save();
     }
 }
@@ -0,0 +1,202 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/** Remembers the size, modification time, file key (inode) and blob id of
+ * working files, in .gitlet/statcache, so a file whose stat data has not
+ * changed does not have to be read and hashed again.
+ *
+ * An entry whose modification time is not older than the cache file itself
+ * is "racy": the file may have been changed again within the same timestamp
+ * tick after it was hashed, so such entries are always rehashed.
+ *  @author Daniel Michles
+ */
+class StatCache {
+
+    private static final int MAGIC = 0x53544154; // "STAT"
+    private static final int VERSION = 1;
+
+    /** Stat data and blob id of one working file. */
+    private static class Entry {
+        private final long size;
+        private final long mtime;
+        private final String fileKey;
+        private final String id;
+
+        Entry(long size, long mtime, String fileKey, String id) {
+            this.size = size;
+            this.mtime = mtime;
+            this.fileKey = fileKey;
+            this.id = id;
+        }
+
+        /** Returns true iff ATTRS describe the same file as this entry. */
+        boolean matches(BasicFileAttributes attrs) {
+            return size == attrs.size()
+                    && mtime == attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS)
+                    && fileKey.equals(fileKey(attrs));
+        }
+    }
+
+    /** Entries by path relative to the working directory, loaded on first use. */
+    private static HashMap<String, Entry> entries;
+    /** Modification time of the cache file when it was loaded. */
+    private static long cacheTime;
+    private static boolean dirty;
+
+    /** Returns the blob id of the working file FILE, whose path is PATH.
+     *  FILE is only hashed if its stat data differs from the cached entry
+     *  or the entry is racy. Safe to call from several threads: files are
+     *  read and hashed outside the lock. */
+    static String hash(File file, String path) {
+        return hash(file, path, false);
+    }
+
+    /** Returns the blob id of the working file FILE, whose path is PATH, as
+     *  hash does, and makes sure the blob is stored (see Blob.store). */
+    static String store(File file, String path) {
+        return hash(file, path, true);
+    }
+
+    private static String hash(File file, String path, boolean store) {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        long mtime = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        Entry entry;
+        boolean fresh;
+        synchronized (StatCache.class) {
+            load();
+            entry = entries.get(path);
+            fresh = entry != null && entry.matches(attrs) && mtime < cacheTime;
+        }
+        if (fresh) {
+            if (store) {
+                Blob.save(file, entry.id);
+            }
+            return entry.id;
+        }
+        String id = store ? Blob.store(file) : Utils.fileSha1(file);
+        synchronized (StatCache.class) {
+            entries.put(path, new Entry(attrs.size(), mtime, fileKey(attrs), id));
+            dirty = true;
+        }
+        return id;
+    }
+
+    /** Drops the entries of paths not in PATHS. */
+    static synchronized void retain(Collection<String> paths) {
+        load();
+        if (entries.keySet().retainAll(new HashSet<>(paths))) {
+            dirty = true;
+        }
+    }
+
+    /** Drops the loaded entries, unsaved ones included, so the next use reads
+     *  the cache file again. */
+    static synchronized void invalidate() {
+        entries = null;
+        dirty = false;
+    }
+
+    /** Writes the cache back to disk if it changed, unless a batch is
+     *  running, which writes it when it saves its state. */
+    static synchronized void save() {
+        if (!Batch.isActive()) {
+            write();
+        }
+    }
+
+    /** Writes the cache back to disk if it changed. */
+    static synchronized void write() {
+        if (!dirty) {
+            return;
+        }
+        File file = Utils.join(Repository.GITLET_DIR, Repository.STAT_CACHE_FILE);
+        File temp = Utils.join(Repository.GITLET_DIR, Repository.STAT_CACHE_FILE + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : new TreeMap<>(entries).entrySet()) {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.size);
+                out.writeLong(entry.mtime);
+                out.writeUTF(entry.fileKey);
+                out.write(Utils.hexToBytes(entry.id));
+            }
+        } catch (IOException e) {
+            temp.delete();
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        try {
+            Files.move(temp.toPath(), file.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+            cacheTime = Files.getLastModifiedTime(file.toPath()).to(TimeUnit.NANOSECONDS);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        dirty = false;
+    }
+
+    /** Reads the cache file, if this has not been done yet. A missing or
+     *  unreadable cache is treated as empty. */
+    private static void load() {
+        if (entries != null) {
+            return;
+        }
+        entries = new HashMap<>();
+        cacheTime = Long.MIN_VALUE;
+        File file = Utils.join(Repository.GITLET_DIR, Repository.STAT_CACHE_FILE);
+        if (!file.isFile()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            long time = Files.getLastModifiedTime(file.toPath()).to(TimeUnit.NANOSECONDS);
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            byte[] id = new byte[Utils.UID_LENGTH / 2];
+            for (int i = 0; i < count; i += 1) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long mtime = in.readLong();
+                String fileKey = in.readUTF();
+                in.readFully(id);
+                entries.put(path, new Entry(size, mtime, fileKey, Utils.bytesToHex(id)));
+            }
+            cacheTime = time;
+        } catch (IOException e) {
+            entries.clear();
+        }
+    }
+
+    private static String fileKey(BasicFileAttributes attrs) {
+        Object key = attrs.fileKey();
+        return key == null ? "" : key.toString();
+    }
+}
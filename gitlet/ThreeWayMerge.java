@@ -0,0 +1,97 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/** Decides the result of merging the files of two commits, given the files
+ * of their split point.
+ *
+ * The three manifests are sorted by path, so they are walked together in a
+ * single merge-join, like the merge step of merge sort: each path is looked
+ * at once and the whole merge is linear in the number of files. For a path
+ * whose blob is S at the split point, H in the current commit and G in the
+ * given one (any of them absent):
+ *   H equals G, or G equals S: the current version is kept;
+ *   H equals S: the given version is taken, or the file removed if G is absent;
+ *   otherwise both sides changed it differently and the file is in conflict.
+ *  @author Daniel Michles
+ */
+class ThreeWayMerge {
+
+    /* Files to take from the given commit: path to blob id */
+    private final TreeMap<String, String> taken = new TreeMap<>();
+    /* Files removed in the given commit and unchanged in the current one */
+    private final List<String> removed = new ArrayList<>();
+    /* Files in conflict */
+    private final List<String> conflicts = new ArrayList<>();
+
+    /** Returns the merge of the files CURRENT and GIVEN, whose split point has the files SPLIT. */
+    static ThreeWayMerge merge(Manifest split, Manifest current, Manifest given) {
+        ThreeWayMerge result = new ThreeWayMerge();
+        int s = 0;
+        int h = 0;
+        int g = 0;
+        while (h < current.size() || g < given.size() || s < split.size()) {
+            String path = min(min(s < split.size() ? split.path(s) : null,
+                    h < current.size() ? current.path(h) : null),
+                    g < given.size() ? given.path(g) : null);
+            ObjectId inSplit = null;
+            ObjectId inCurrent = null;
+            ObjectId inGiven = null;
+            if (s < split.size() && split.path(s).equals(path)) {
+                inSplit = split.id(s++);
+            }
+            if (h < current.size() && current.path(h).equals(path)) {
+                inCurrent = current.id(h++);
+            }
+            if (g < given.size() && given.path(g).equals(path)) {
+                inGiven = given.id(g++);
+            }
+            result.decide(path, inSplit, inCurrent, inGiven);
+        }
+        return result;
+    }
+
+    private void decide(String path, ObjectId inSplit, ObjectId inCurrent, ObjectId inGiven) {
+        if (same(inCurrent, inGiven) || same(inSplit, inGiven)) {
+            return;
+        }
+        if (same(inSplit, inCurrent)) {
+            if (inGiven == null) {
+                removed.add(path);
+            } else {
+                taken.put(path, inGiven.toString());
+            }
+            return;
+        }
+        conflicts.add(path);
+    }
+
+    /** Returns the files to take from the given commit, path to blob id, in path order. */
+    TreeMap<String, String> getTaken() {
+        return taken;
+    }
+
+    /** Returns the files the given commit removed that the current one did not change, in path order. */
+    List<String> getRemoved() {
+        return removed;
+    }
+
+    /** Returns the files in conflict, in path order. */
+    List<String> getConflicts() {
+        return conflicts;
+    }
+
+    private static boolean same(ObjectId a, ObjectId b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /** Returns the lesser of A and B, where null is greater than any path. */
+    private static String min(String a, String b) {
+        if (a == null) {
+            return b;
+        }
+        return b == null || a.compareTo(b) <= 0 ? a : b;
+    }
+}
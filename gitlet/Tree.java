@@ -0,0 +1,284 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/** A tree object: the contents of one directory of a commit.
+ *
+ * A tree maps each name in its directory to either a blob (a file) or the
+ * id of another tree (a subdirectory). It is stored as the magic bytes "GT",
+ * a version byte, the varint entry count and the entries sorted by name,
+ * each a type byte, the varint-length name and the raw 20-byte id. Its id is
+ * the SHA-1 of "tree " followed by that encoding, so equal directories are
+ * stored once and shared by every commit that contains them. A commit names
+ * its root tree, and the walks below skip any subtree whose id is the same
+ * on both sides without reading it.
+ *
+ * Paths are relative to the working directory and use '/' as separator.
+ * Trees are immutable, so loaded trees are shared through CACHE.
+ *  @author Daniel Michles
+ */
+class Tree {
+
+    /** Type byte of an entry naming a blob. */
+    private static final int BLOB = 1;
+    /** Type byte of an entry naming a subtree. */
+    private static final int TREE = 2;
+
+    private static final byte[] MAGIC = {'G', 'T'};
+    private static final int VERSION = 1;
+
+    /** The tree with no entries. It is never written to the object store. */
+    static final Tree EMPTY = new Tree(new TreeMap<>());
+    /** Id of EMPTY. */
+    static final String EMPTY_ID = EMPTY.id();
+
+    /* Loaded trees, weighed by their number of entries */
+    static final ObjectCache<Tree> CACHE =
+            new ObjectCache<>("tree", 250_000, tree -> 1 + tree.entries.size());
+
+    /** One entry of a tree: a blob or a subtree, by id. */
+    static class Entry {
+        private final boolean tree;
+        private final ObjectId id;
+
+        Entry(boolean tree, ObjectId id) {
+            this.tree = tree;
+            this.id = id;
+        }
+
+        boolean isTree() {
+            return tree;
+        }
+
+        ObjectId getId() {
+            return id;
+        }
+    }
+
+    /** Receives the differences found by diff(). */
+    interface Visitor {
+        /** Called for the file PATH, whose blob is BEFORE in the old tree and
+         *  AFTER in the new one. Either is null if the file is absent. */
+        void visit(String path, String before, String after);
+    }
+
+    /* Entries by name */
+    private final TreeMap<String, Entry> entries;
+
+    private Tree(TreeMap<String, Entry> entries) {
+        this.entries = entries;
+    }
+
+    /** Returns the entries of this tree by name. The map is read-only. */
+    Map<String, Entry> getEntries() {
+        return Collections.unmodifiableMap(entries);
+    }
+
+    /** Returns the tree ID. */
+    static Tree load(String id) {
+        if (id.equals(EMPTY_ID)) {
+            return EMPTY;
+        }
+        return CACHE.get(id, key -> decode(readRaw(key)));
+    }
+
+    /** Returns the stored bytes of tree ID, looking in the packs before the loose objects. */
+    static byte[] readRaw(String id) {
+        byte[] data = Pack.read(id);
+        if (data == null) {
+            File file = Repository.objectFile(Repository.TREES_DIR, id);
+            if (!file.isFile()) {
+                throw Utils.error("Missing tree %s.", id);
+            }
+            data = Utils.readContents(file);
+        }
+        return data;
+    }
+
+    /** Writes this tree to the object store unless it is already there, and returns its id. */
+    private String save() {
+        String id = id();
+        if (id.equals(EMPTY_ID)) {
+            return id;
+        }
+        File file = Repository.objectFile(Repository.TREES_DIR, id);
+        if (!file.exists() && !Pack.contains(id)) {
+            file.getParentFile().mkdirs();
+            Utils.writeContents(file, encode());
+        }
+        CACHE.put(id, this);
+        return id;
+    }
+
+    private String id() {
+        return Utils.sha1("tree ", encode());
+    }
+
+    /** Returns the binary encoding of this tree. */
+    byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            Utils.writeVarint(out, entries.size());
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                out.writeByte(entry.getValue().tree ? TREE : BLOB);
+                Utils.writeString(out, entry.getKey());
+                out.write(entry.getValue().id.toRaw());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Tree decode(byte[] data) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            if (in.readByte() != MAGIC[0] || in.readByte() != MAGIC[1]
+                    || in.readUnsignedByte() != VERSION) {
+                throw new IllegalArgumentException("unknown tree format");
+            }
+            int count = (int) Utils.readVarint(in);
+            TreeMap<String, Entry> entries = new TreeMap<>();
+            byte[] raw = new byte[Utils.UID_LENGTH / 2];
+            for (int i = 0; i < count; i += 1) {
+                boolean tree = in.readUnsignedByte() == TREE;
+                String name = Utils.readString(in).intern();
+                in.readFully(raw);
+                entries.put(name, new Entry(tree, ObjectId.fromRaw(raw, 0)));
+            }
+            return new Tree(entries);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("corrupt tree: " + e.getMessage());
+        }
+    }
+
+    /** Writes the trees holding FILES (path to blob id) and returns the id of the root. */
+    static String write(Map<String, String> files) {
+        return update(EMPTY_ID, files);
+    }
+
+    /** Returns the id of the root tree ROOT with CHANGES (path to blob id, or
+     *  to null for a removed file) applied, writing the new trees. Only the
+     *  trees on the paths to changed files are rebuilt; every other subtree is
+     *  shared with ROOT. */
+    static String update(String root, Map<String, String> changes) {
+        if (changes.isEmpty()) {
+            return root;
+        }
+        TreeMap<String, Entry> entries = new TreeMap<>(load(root).entries);
+        /* Changes below each subdirectory, relative to it */
+        TreeMap<String, TreeMap<String, String>> below = new TreeMap<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            String path = change.getKey();
+            int slash = path.indexOf('/');
+            if (slash < 0) {
+                if (change.getValue() == null) {
+                    Entry old = entries.get(path);
+                    if (old != null && !old.tree) {
+                        entries.remove(path);
+                    }
+                } else {
+                    entries.put(path, new Entry(false, ObjectId.fromHex(change.getValue())));
+                }
+            } else {
+                below.computeIfAbsent(path.substring(0, slash), k -> new TreeMap<>())
+                        .put(path.substring(slash + 1), change.getValue());
+            }
+        }
+        for (Map.Entry<String, TreeMap<String, String>> dir : below.entrySet()) {
+            Entry old = entries.get(dir.getKey());
+            /* A file being replaced by a directory of the same name starts empty. */
+            String subtree = old != null && old.tree ? old.id.toString() : EMPTY_ID;
+            String updated = update(subtree, dir.getValue());
+            if (updated.equals(EMPTY_ID)) {
+                if (old != null && old.tree) {
+                    entries.remove(dir.getKey());
+                }
+            } else {
+                entries.put(dir.getKey(), new Entry(true, ObjectId.fromHex(updated)));
+            }
+        }
+        return new Tree(entries).save();
+    }
+
+    /** Returns the blob id of the file PATH in the tree ROOT, or null. */
+    static String get(String root, String path) {
+        Tree tree = load(root);
+        int start = 0;
+        int slash;
+        while ((slash = path.indexOf('/', start)) >= 0) {
+            Entry entry = tree.entries.get(path.substring(start, slash));
+            if (entry == null || !entry.tree) {
+                return null;
+            }
+            tree = load(entry.id.toString());
+            start = slash + 1;
+        }
+        Entry entry = tree.entries.get(path.substring(start));
+        return entry == null || entry.tree ? null : entry.id.toString();
+    }
+
+    /** Adds every file of the tree ROOT to FILES in path order, with PREFIX
+     *  before each path. */
+    static void flatten(String root, String prefix, Manifest.Builder files) {
+        /* A directory's files sort as if its name ended in '/', which is not
+         * always where its name sorts among its siblings. */
+        TreeMap<String, Entry> ordered = new TreeMap<>();
+        for (Map.Entry<String, Entry> entry : load(root).entries.entrySet()) {
+            ordered.put(entry.getKey() + (entry.getValue().tree ? "/" : ""), entry.getValue());
+        }
+        for (Map.Entry<String, Entry> entry : ordered.entrySet()) {
+            String path = prefix + entry.getKey();
+            if (entry.getValue().tree) {
+                flatten(entry.getValue().id.toString(), path, files);
+            } else {
+                files.add(path, entry.getValue().id);
+            }
+        }
+    }
+
+    /** Calls VISITOR for every file that differs between the trees BEFORE
+     *  and AFTER, directory by directory. Subtrees with the same id on both sides are
+     *  skipped without being read. */
+    static void diff(String before, String after, Visitor visitor) {
+        diff(before, after, "", visitor);
+    }
+
+    private static void diff(String before, String after, String prefix, Visitor visitor) {
+        if (before != null && before.equals(after)) {
+            return;
+        }
+        Map<String, Entry> old = before == null ? EMPTY.entries : load(before).entries;
+        Map<String, Entry> now = after == null ? EMPTY.entries : load(after).entries;
+        TreeSet<String> names = new TreeSet<>(old.keySet());
+        names.addAll(now.keySet());
+        for (String name : names) {
+            Entry a = old.get(name);
+            Entry b = now.get(name);
+            String path = prefix + name;
+            ObjectId blobA = a != null && !a.tree ? a.id : null;
+            ObjectId blobB = b != null && !b.tree ? b.id : null;
+            if (blobA != null || blobB != null) {
+                if (blobA == null || !blobA.equals(blobB)) {
+                    visitor.visit(path, blobA == null ? null : blobA.toString(),
+                            blobB == null ? null : blobB.toString());
+                }
+            }
+            String treeA = a != null && a.tree ? a.id.toString() : null;
+            String treeB = b != null && b.tree ? b.id.toString() : null;
+            if (treeA != null || treeB != null) {
+                diff(treeA, treeB, path + "/", visitor);
+            }
+        }
+    }
+}
@@ -1,14 +1,20 @@
 package gitlet;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.charset.StandardCharsets;
@@ -65,6 +71,72 @@ class Utils {
         return sha1(vals.toArray(new Object[vals.size()]));
     }
 
+    /** Size of the buffer fileSha1 reads files through. */
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
+    /** Per-thread digest and direct read buffer reused by fileSha1. */
+    private static final ThreadLocal<MessageDigest> FILE_DIGEST =
+        ThreadLocal.withInitial(() -> {
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException excp) {
+                throw new IllegalArgumentException("System does not support SHA-1");
+            }
+        });
+    private static final ThreadLocal<ByteBuffer> FILE_BUFFER =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(HASH_BUFFER_SIZE));
+
+    /** Returns the SHA-1 hash of the contents of FILE.  The file is streamed
+     *  through a reused direct buffer, so memory use does not depend on its
+     *  size.  Throws IllegalArgumentException in case of problems. */
+    static String fileSha1(File file) {
+        MessageDigest md = FILE_DIGEST.get();
+        ByteBuffer buffer = FILE_BUFFER.get();
+        md.reset();
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            buffer.clear();
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                md.update(buffer);
+                buffer.clear();
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return bytesToHex(md.digest());
+    }
+
+    /** Returns the UID_LENGTH / 2 raw bytes of the hexadecimal UID ID. */
+    static byte[] hexToBytes(String id) {
+        byte[] result = new byte[id.length() / 2];
+        for (int i = 0; i < result.length; i += 1) {
+            int hi = Character.digit(id.charAt(2 * i), 16);
+            int lo = Character.digit(id.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0) {
+                throw new IllegalArgumentException("not a hexadecimal id: " + id);
+            }
+            result[i] = (byte) ((hi << 4) | lo);
+        }
+        return result;
+    }
+
+    /** Returns the hexadecimal numeral of the LEN bytes of BYTES starting
+     *  at OFFSET. */
+    static String bytesToHex(byte[] bytes, int offset, int len) {
+        char[] result = new char[2 * len];
+        for (int i = 0; i < len; i += 1) {
+            int b = bytes[offset + i] & 0xff;
+            result[2 * i] = Character.forDigit(b >>> 4, 16);
+            result[2 * i + 1] = Character.forDigit(b & 0xf, 16);
+        }
+        return new String(result);
+    }
+
+    /** Returns the hexadecimal numeral of BYTES. */
+    static String bytesToHex(byte[] bytes) {
+        return bytesToHex(bytes, 0, bytes.length);
+    }
+
     /* FILE DELETION */
 
     /** Deletes FILE if it exists and is not a directory.  Returns true
@@ -154,6 +226,22 @@ class Utils {
         }
     }
 
+    /** Return an object of type T deserialized from DATA, casting it to
+     *  EXPECTEDCLASS.  Throws IllegalArgumentException in case of problems. */
+    static <T extends Serializable> T deserialize(byte[] data,
+                                                  Class<T> expectedClass) {
+        try {
+            ObjectInputStream in =
+                new ObjectInputStream(new ByteArrayInputStream(data));
+            T result = expectedClass.cast(in.readObject());
+            in.close();
+            return result;
+        } catch (IOException | ClassCastException
+                 | ClassNotFoundException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
     /** Write OBJ to FILE. */
     static void writeObject(File file, Serializable obj) {
         writeContents(file, serialize(obj));
@@ -224,6 +312,58 @@ class Utils {
 
 
 
+    /* VARIABLE-LENGTH INTEGERS */
+
+    /** Write the non-negative VALUE to OUT as a base-128 varint: seven bits
+     *  per byte, least significant group first, high bit set on all but
+     *  the last byte. */
+    static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /** Read a varint written by writeVarint from IN. */
+    static long readVarint(InputStream in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("truncated varint");
+            }
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    /** Write STR to OUT as its varint UTF-8 length followed by its UTF-8 bytes. */
+    static void writeString(OutputStream out, String str) throws IOException {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    /** Read a String written by writeString from IN. */
+    static String readString(InputStream in) throws IOException {
+        int len = (int) readVarint(in);
+        byte[] bytes = in.readNBytes(len);
+        if (bytes.length != len) {
+            throw new EOFException("truncated string");
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Returns true iff DATA starts with the Java serialization stream magic,
+     *  i.e. was written by writeObject. */
+    static boolean isSerializedObject(byte[] data) {
+        return data.length >= 2 && (data[0] & 0xff) == 0xac && (data[1] & 0xff) == 0xed;
+    }
+
     /* MESSAGES AND ERROR REPORTING */
 
     /** Return a GitletException whose message is composed from MSG and ARGS as
@@ -239,11 +379,10 @@ class Utils {
         System.out.println();
     }
 
+    /** Abandons the current command with the error MESSAGE, which Main
+     *  prints before exiting with a failure status. */
     public static void exitWithError(String message) {
-        if (message != null && !message.equals("")) {
-            System.out.println(message);
-        }
-        System.exit(-1);
+        throw new GitletException(message);
     }
 
     public static void copyFile(File file1, File file2){
@@ -0,0 +1,156 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/** The lock held by commands that change the repository, so that only one
+ * runs at a time.
+ *
+ * It is an OS lock (FileChannel.tryLock) on .gitlet/lock, which the holder
+ * also fills with its pid. The OS drops the lock when its holder exits, so a
+ * process killed while holding it never blocks the next one. The pid it
+ * leaves in the file shows the next holder that the previous one did not
+ * finish, and since no other process can be writing then, the ref locks it
+ * left behind (see Refs.writeLocked) and its half-written blobs are removed.
+ * A process that finds the lock taken retries for up to TIMEOUT_MILLIS.
+ *
+ * Commands that only read, such as log, find and status, do not take it:
+ * every file they read is replaced by renaming a complete new copy over it,
+ * or, for the search postings and the commit graph layer, only appended
+ * whole entries that readers ignore until complete, so they see either the
+ * old or the new version and never one half written. A reader that finds
+ * one of those files missing or out of date takes the lock to rebuild it.
+ * The lock is reentrant within a process, so a batch can hold it across the
+ * commands it runs.
+ *  @author Daniel Michles
+ */
+class WriteLock {
+
+    /** How long to wait for another process to release the lock. */
+    static final long TIMEOUT_MILLIS = 10_000;
+    private static final long MAX_RETRY_MILLIS = 200;
+
+    private static FileChannel channel;
+    private static FileLock lock;
+    /* Number of acquires not yet released in this process. */
+    private static int depth;
+
+    /** Takes the lock, waiting for another process that holds it. */
+    static synchronized void acquire() {
+        if (depth > 0) {
+            depth += 1;
+            return;
+        }
+        File file = Utils.join(Repository.GITLET_DIR, Repository.LOCK_FILE);
+        FileChannel opened = null;
+        try {
+            opened = FileChannel.open(file.toPath(), CREATE, READ, WRITE);
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            long retry = 10;
+            FileLock taken;
+            while ((taken = opened.tryLock()) == null) {
+                if (System.currentTimeMillis() >= deadline) {
+                    String holder = holder(opened);
+                    throw Utils.error("Another gitlet process%s is changing the repository."
+                            + " Try again once it finishes.", holder.isEmpty() ? "" : " (pid " + holder + ")");
+                }
+                Thread.sleep(retry);
+                retry = Math.min(retry * 2, MAX_RETRY_MILLIS);
+            }
+            if (!holder(opened).isEmpty()) {
+                removeStale();
+            }
+            opened.truncate(0);
+            opened.write(ByteBuffer.wrap((ProcessHandle.current().pid() + "\n")
+                    .getBytes(StandardCharsets.US_ASCII)), 0);
+            channel = opened;
+            lock = taken;
+            depth = 1;
+        } catch (IOException e) {
+            close(opened);
+            throw new IllegalArgumentException(e.getMessage());
+        } catch (InterruptedException e) {
+            close(opened);
+            Thread.currentThread().interrupt();
+            throw Utils.error("Interrupted while waiting for the repository lock.");
+        } catch (RuntimeException e) {
+            close(opened);
+            throw e;
+        }
+    }
+
+    /** Releases one acquire of the lock, and the lock itself with the last one. */
+    static synchronized void release() {
+        depth -= 1;
+        if (depth > 0) {
+            return;
+        }
+        try {
+            /* Emptied first, so the next holder knows this one finished. */
+            channel.truncate(0);
+            lock.release();
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        } finally {
+            close(channel);
+            channel = null;
+            lock = null;
+        }
+    }
+
+    /** Returns the pid written to the lock file, or "" if it is empty. */
+    private static String holder(FileChannel file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(32);
+        file.read(buffer, 0);
+        return new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII).trim();
+    }
+
+    /** Removes the ref locks and blobs being stored left by a process that
+     *  died holding the lock. */
+    private static void removeStale() {
+        removeLocks(Repository.REFS_DIR);
+        for (String name : new String[] {Repository.HEAD_FILE, Repository.PACKED_REFS_FILE}) {
+            Utils.join(Repository.GITLET_DIR, name + Refs.LOCK_SUFFIX).delete();
+        }
+        File[] incoming = Repository.COMMITTED_DIR.listFiles(
+                (dir, name) -> name.startsWith(Blob.INCOMING_PREFIX));
+        if (incoming != null) {
+            for (File file : incoming) {
+                file.delete();
+            }
+        }
+    }
+
+    private static void removeLocks(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                removeLocks(file);
+            } else if (file.getName().endsWith(Refs.LOCK_SUFFIX)) {
+                file.delete();
+            }
+        }
+    }
+
+    private static void close(FileChannel file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            /* Closing releases the lock anyway. */
+        }
+    }
+}